@@ -18,6 +18,8 @@ public class App {
 
     private static final Logger log = LogManager.getLogger(App.class);
 
+    static final String PREFETCH_METADATA = "--prefetch-metadata";
+
     @Parameter
     List<String> args = new ArrayList<>();
 
@@ -32,9 +34,10 @@ public class App {
     List<String> o = new ArrayList<>();
 
     @Parameter(names = "--cache", description = "Directory to use for data cache. "
-                                                + "Requires catfs and `-o allow_other'. "
-                                                + "Can also pass in other catfs options "
-                                                + "(ex: --cache \"--free:10%:$HOME/cache\" "
+                                                + "Blocks are evicted to keep some space free, "
+                                                + "10% unless given as a percentage or size "
+                                                + "(ex: --cache \"--free:10%:$HOME/cache\", "
+                                                + "--cache \"--free:5G:$HOME/cache\") "
                                                 + "(default: off)")
     String cache;
 
@@ -121,6 +124,79 @@ public class App {
                                                          + "inodes.")
     int typeCacheTtl = 60;
 
+    @Parameter(names = "--max-conns", description = "Maximum number of pooled HTTP connections "
+                                                    + "to B2")
+    int maxConns = 1000;
+
+    @Parameter(names = "--max-conns-per-host", description = "Maximum number of pooled HTTP "
+                                                             + "connections to a single B2 host")
+    int maxConnsPerHost = 1000;
+
+    @Parameter(names = "--conn-idle-timeout", description = "How long an unused HTTP connection "
+                                                            + "is kept open for reuse")
+    int connIdleTimeout = 90;
+
+    @Parameter(names = "--max-buffer-memory", description = "Maximum off-heap memory in MB used "
+                                                            + "to buffer reads and writes "
+                                                            + "(default: half of the JVM heap "
+                                                            + "limit)")
+    int maxBufferMemory;
+
+    @Parameter(names = "--readahead-workers", description = "Maximum number of readahead chunks "
+                                                            + "fetched at the same time")
+    int readAheadWorkers = 64;
+
+    @Parameter(names = "--readahead-min", description = "Readahead window in MB when a file "
+                                                        + "starts being read sequentially")
+    int readAheadMin = 5;
+
+    @Parameter(names = "--readahead-max", description = "Largest readahead window in MB a "
+                                                        + "sequential reader can grow to")
+    int readAheadMax = 100;
+
+    @Parameter(names = "--block-cache-size", description = "Memory in MB out of "
+                                                           + "--max-buffer-memory used to cache "
+                                                           + "file data across all open files, "
+                                                           + "at most half of it, 0 to disable "
+                                                           + "(default: a quarter of it)")
+    int blockCacheSize = -1;
+
+    @Parameter(names = "--metadata-snapshot", description = "File to keep a snapshot of bucket "
+                                                            + "metadata in, so that a remount "
+                                                            + "doesn't have to list the bucket "
+                                                            + "again. Entries are still "
+                                                            + "refreshed per --stat-cache-ttl "
+                                                            + "and --type-cache-ttl (default: "
+                                                            + "off)")
+    String metadataSnapshot;
+
+    @Parameter(names = "--metadata-snapshot-interval", description = "How often in seconds the "
+                                                                     + "metadata snapshot is "
+                                                                     + "written, besides at "
+                                                                     + "unmount, 0 for only at "
+                                                                     + "unmount")
+    int metadataSnapshotInterval = 300;
+
+    @Parameter(names = PREFETCH_METADATA, description = "List the whole bucket, or everything "
+                                                        + "under prefix with "
+                                                        + "--prefetch-metadata=prefix, in "
+                                                        + "parallel at mount so that no "
+                                                        + "directory has to be listed on its own "
+                                                        + "(default: off)")
+    String prefetchMetadata;
+
+    @Parameter(names = "--fast-delete", description = "Allow removing a whole directory tree at "
+                                                      + "once with setfattr -n "
+                                                      + "user.b2fys.rmtree dir, which deletes "
+                                                      + "everything under it in parallel "
+                                                      + "(default: off)")
+    boolean fastDelete;
+
+    @Parameter(names = "--write-back", description = "Return from close() right away and upload "
+                                                     + "files in the background, fsync() "
+                                                     + "uploads at once (default: off)")
+    boolean writeBack;
+
     // ---------
     // Debugging
     // ---------
@@ -138,7 +214,7 @@ public class App {
         FlagStorage flags;
 
         App app = new App();
-        new JCommander(app).parse(args);
+        new JCommander(app).parse(massageOptionalValues(args));
 
         args = FlagStorage.massageMountFlags(app.args.toArray(new String[0]));
 
@@ -166,15 +242,31 @@ public class App {
         FuseFilesystem fs = mount(bucketName, flags);
 
         log.info("File system has been successfully mounted.");
-        // Let the user unmount with Ctrl-C
-        // (SIGINT). But if cache is on, catfs will
-        // receive the signal and we would detect that exiting
+        // Let the user unmount with Ctrl-C (SIGINT)
         registerSIGINTHandler(fs, flags);
 
         flags.cleanup();
         Thread.sleep(Long.MAX_VALUE);
     }
 
+    // --prefetch-metadata takes an optional value, which JCommander can't
+    // express: pass "--prefetch-metadata[=prefix]" on as a flag and a value.
+    static String[] massageOptionalValues(String[] args) {
+        List<String> out = new ArrayList<>(args.length + 1);
+        for (String arg : args) {
+            if (arg.equals(PREFETCH_METADATA)) {
+                out.add(PREFETCH_METADATA);
+                out.add("");
+            } else if (arg.startsWith(PREFETCH_METADATA + "=")) {
+                out.add(PREFETCH_METADATA);
+                out.add(arg.substring(PREFETCH_METADATA.length() + 1));
+            } else {
+                out.add(arg);
+            }
+        }
+        return out.toArray(new String[0]);
+    }
+
     // Mount the file system based on the supplied arguments, returning a
     // fuse.MountedFileSystem that can be joined to wait for unmounting.
     static FuseFilesystem mount(String bucketName, FlagStorage flags) {
@@ -207,19 +299,14 @@ public class App {
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
-                if (flags.cache.length == 0) {
-                    log.info("Received SIGINT, attempting to unmount...");
-
-                    boolean err = tryUnmount(flags.mountPoint);
-                    if (!err) {
-                        log.info("Failed to unmount in response to SIGINT: %s", err);
-                    } else {
-                        log.info("Successfully unmounted %s in response to SIGINT",
-                                 flags.mountPoint);
-                    }
+                log.info("Received SIGINT, attempting to unmount...");
+
+                boolean err = tryUnmount(flags.mountPoint);
+                if (!err) {
+                    log.info("Failed to unmount in response to SIGINT: %s", err);
                 } else {
-                    log.info("Received SIGINT");
-                    // wait for catfs to die and cleanup
+                    log.info("Successfully unmounted %s in response to SIGINT",
+                             flags.mountPoint);
                 }
             }
         });
@@ -6,7 +6,12 @@ import com.backblaze.b2.client.B2StorageClient;
 import com.backblaze.b2.client.exceptions.B2Exception;
 import com.backblaze.b2.client.structures.B2Bucket;
 import com.backblaze.b2.client.structures.B2FileVersion;
+import com.backblaze.b2.client.structures.B2FinishLargeFileRequest;
 import com.backblaze.b2.client.structures.B2ListFileNamesRequest;
+import com.backblaze.b2.client.structures.B2ListFileVersionsRequest;
+import com.backblaze.b2.client.structures.B2Part;
+import com.backblaze.b2.client.structures.B2StartLargeFileRequest;
+import com.backblaze.b2.util.B2ByteRange;
 
 import net.freastro.b2fys.client.B2StreamClient;
 import net.freastro.b2fys.client.B2StreamClientBuilder;
@@ -14,20 +19,31 @@ import net.freastro.b2fys.client.B2StreamClientBuilder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import sun.awt.Mutex;
-
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -49,6 +65,22 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
 
     private static final Logger log = LogManager.getLogger(B2FuseFilesystem.class);
 
+    private static final int DEFAULT_READAHEAD_WORKERS = 64;
+    // enough for a few directories to be listed in RangeLister.MAX_RANGES ranges at once
+    private static final int LIST_WORKERS = 64;
+    // b2_copy_file takes objects of up to 5GB, larger ones are copied in parts
+    static final long MAX_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+    static final long MIN_COPY_PART_SIZE = 50 * 1024 * 1024;
+
+    private static final int DELETE_WORKERS = 64;
+    private static final int WRITE_BACK_WORKERS = 64;
+    // deletions unlink can queue up before it waits for some to finish
+    private static final int MAX_PENDING_DELETES = 1024;
+
+    // setxattr on a directory with this removes everything under it, if
+    // --fast-delete is on
+    static final String RMTREE_XATTR = "user.b2fys.rmtree";
+
     B2Bucket bucket;
     String prefix = "";
 
@@ -65,17 +97,37 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
     InodeAttributes rootAttrs = new InodeAttributes();
 
     BufferPool bufferPool;
-
-    // A lock protecting the state of the file system struct itself (distinct
-    // from per-inode locks). Make sure to see the notes on lock ordering above.
-    Mutex mu = new Mutex();
+    // Runs the readLoop of readahead buffers, see --readahead-workers.
+    ExecutorService readAheadPool;
+    // Runs large file part uploads, see FileHandle.writeFile and replicators.
+    ExecutorService uploadPool;
+    // Runs the key ranges of parallel listings, see RangeLister.
+    ExecutorService listPool;
+    // Deletions from B2, see unlink.
+    ExecutorService deletePool;
+    // Uploads of closed files, see release.
+    ExecutorService writeBackPool;
+    // File data shared by all handles, null if --block-cache-size is 0.
+    BlockCache blockCache;
+    // File data kept on local disk across mounts, null if --cache is off.
+    DiskCache diskCache;
+    // Inode tree kept on local disk across mounts, null if
+    // --metadata-snapshot is off.
+    MetadataSnapshot snapshot;
+    ScheduledExecutorService snapshotSaver;
+    // Listing of --prefetch-metadata, null if it's off.
+    CompletableFuture<Void> prefetch;
+
+    // The file system struct itself holds no lock. The inode and handle tables
+    // are concurrent maps and IDs are handed out atomically, so FUSE ops on
+    // unrelated paths never wait on each other (or on a B2 round-trip made on
+    // behalf of another op). Structural changes to a directory are serialized
+    // by the parent inode's mu instead.
 
     // The next inode ID to hand out. We assume that this will never overflow,
     // since even if we were handing out inode IDs at 4 GHz, it would still take
     // over a century to do so.
-    //
-    // GUARDED_BY(mu)
-    long nextInodeID;
+    AtomicLong nextInodeID;
 
     // The collection of live inodes, keyed by inode ID. No ID less than
     // fuseops.RootInodeID is ever used.
@@ -84,17 +136,37 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
     // INVARIANT: For all keys k, inodes[k].ID() == k
     // INVARIANT: inodes[fuseops.RootInodeID] is missing or of type inode.DirInode
     // INVARIANT: For all v, if IsDirName(v.Name()) then v is inode.DirInode
-    //
-    // GUARDED_BY(mu)
     Map<Long, Inode> inodes;
     Map<String, Long> paths;
 
-    long nextHandleID;
+    AtomicLong nextHandleID;
     Map<Long, DirHandle> dirHandles;
     Map<Long, FileHandle> fileHandles;
 
+    // B2 lookups currently in flight, keyed by full path. Concurrent lookups
+    // of the same path wait on the first one instead of listing again.
+    Map<String, CompletableFuture<Inode>> lookUps;
+
+    // Paths recently found not to exist.
+    NegativeCache negativeCache;
+
+    // Keys being deleted in the background -> done when they are. Listings
+    // and lookups skip these, they're gone as far as FUSE is concerned.
+    Map<String, CompletableFuture<Void>> deletes;
+
+    // Files closed but not uploaded yet (--write-back) -> done when they
+    // are. The last one to be closed if a file was open several times, it
+    // is uploaded after the others.
+    Map<Inode, CompletableFuture<Void>> writeBacks;
+
+    // Uploads and copies in flight across all files, so that many writers
+    // share the uplink (and the BufferPool) fairly instead of each opening
+    // as many connections as it has parts ready.
     Ticket replicators;
     Ticket restorers;
+    // Deletions queued or in flight, so that unlink of a huge directory
+    // doesn't queue up without bound.
+    Ticket deleters;
 
     int forgotCnt;
 
@@ -201,11 +273,39 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
         fs.rootAttrs.size = 4096;
         fs.rootAttrs.mTime = now;
 
-        fs.bufferPool = new BufferPool().init();
-
-        fs.nextInodeID = Inode.RootInodeID + 1;
-        fs.inodes = new HashMap<>();
-        fs.paths = new HashMap<>();
+        fs.bufferPool = new BufferPool();
+        fs.bufferPool.maxMemory = flags.maxBufferMemory;
+        fs.bufferPool.init();
+        if (flags.blockCacheSize != 0) {
+            // cached blocks are never handed back to the pool, leave reads and
+            // writes the larger part of it
+            long cacheSize = fs.bufferPool.maxMemory / 4;
+            if (flags.blockCacheSize > fs.bufferPool.maxMemory / 2) {
+                cacheSize = fs.bufferPool.maxMemory / 2;
+                log.warn("--block-cache-size lowered to {}MB, half of the buffer memory",
+                         cacheSize / 1024 / 1024);
+            } else if (flags.blockCacheSize > 0) {
+                cacheSize = flags.blockCacheSize;
+            }
+            fs.blockCache = new BlockCache(cacheSize, fs.bufferPool);
+        }
+        if (flags.cacheDir != null) {
+            try {
+                fs.diskCache = new DiskCache(Paths.get(flags.cacheDir), flags.cacheFreeRatio,
+                                             flags.cacheFreeBytes).init();
+            } catch (IOException e) {
+                log.error("Unable to use cache directory {}: {}", flags.cacheDir, e.toString());
+                return null;
+            }
+        }
+        fs.readAheadPool = newPool(
+                "readahead",
+                (flags.readAheadWorkers > 0) ? flags.readAheadWorkers : DEFAULT_READAHEAD_WORKERS);
+        fs.listPool = newPool("list", LIST_WORKERS);
+
+        fs.nextInodeID = new AtomicLong(Inode.RootInodeID + 1);
+        fs.inodes = new ConcurrentHashMap<>();
+        fs.paths = new ConcurrentHashMap<>();
         Inode root = new Inode(fs, null, "", "");
         root.id = Inode.RootInodeID;
         root.toDir();
@@ -214,18 +314,114 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
         fs.inodes.put(Inode.RootInodeID, root);
         fs.paths.put("/", Inode.RootInodeID);
 
-        fs.nextHandleID = 1;
-        fs.dirHandles = new HashMap<>();
+        fs.nextHandleID = new AtomicLong(1);
+        fs.dirHandles = new ConcurrentHashMap<>();
 
-        fs.fileHandles = new HashMap<>();
+        fs.fileHandles = new ConcurrentHashMap<>();
+
+        fs.lookUps = new ConcurrentHashMap<>();
+        fs.negativeCache = new NegativeCache(flags.statCacheTtl, NegativeCache.MAX_ENTRIES);
+        fs.deletes = new ConcurrentHashMap<>();
+        fs.writeBacks = new ConcurrentHashMap<>();
 
         fs.replicators = new Ticket(16).init();
         fs.restorers = new Ticket(8).init();
+        // a thread for every upload that can hold a ticket
+        fs.uploadPool = newPool("upload", fs.replicators.total);
+        fs.deleters = new Ticket(MAX_PENDING_DELETES).init();
+        fs.deletePool = newPool("delete", DELETE_WORKERS);
+        fs.writeBackPool = newPool("write-back", WRITE_BACK_WORKERS);
+
+        if (flags.metadataSnapshot != null) {
+            fs.snapshot = new MetadataSnapshot(fs, Paths.get(flags.metadataSnapshot)).load();
+            if (!flags.metadataSnapshotInterval.isZero()) {
+                long interval = flags.metadataSnapshotInterval.getSeconds();
+                fs.snapshotSaver = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "metadata-snapshot");
+                    t.setDaemon(true);
+                    return t;
+                });
+                fs.snapshotSaver.scheduleWithFixedDelay(fs::saveSnapshot, interval, interval,
+                                                        TimeUnit.SECONDS);
+            }
+        }
+
+        if (flags.prefetchMetadata != null) {
+            fs.prefetch = fs.prefetchMetadata(flags.prefetchMetadata);
+        }
 
-//        http.DefaultTransport.(*http.Transport).MaxIdleConnsPerHost = 1000
         return fs;
     }
 
+    // Lists everything under prefix (relative to the mount) in one pass and
+    // builds the inode tree from it, so that a crawl finds every directory
+    // already listed (--prefetch-metadata). Runs in the background, anything
+    // looked up in the meantime goes to B2 as usual.
+    CompletableFuture<Void> prefetchMetadata(@Nonnull final String prefix) {
+        final String keyPrefix = key(prefix);
+        final int base = key("").length();
+        final Inode root = getInodeOrDie(RootInodeID);
+        final Set<Inode> dirs = ConcurrentHashMap.newKeySet();
+        final AtomicLong objects = new AtomicLong();
+        final Instant start = Instant.now();
+
+        log.info("Prefetching metadata under {}", keyPrefix);
+        return new RangeLister(this, listPool).list(
+                keyPrefix, RangeLister.defaultBoundaries(keyPrefix), obj -> {
+            // only the dirs on this object's path, sealing is done at the end
+            Map<Inode, Boolean> path = new HashMap<>();
+            root.insertSubTree(obj.getFileName().substring(base), obj, path);
+            dirs.addAll(path.keySet());
+            objects.incrementAndGet();
+        }).whenComplete((v, err) -> {
+            if (err != null) {
+                log.error("Prefetching metadata under {}: {}", keyPrefix, err.toString());
+                return;
+            }
+
+            // we've seen everything in dirs that are entirely under prefix
+            Instant now = Instant.now();
+            if (prefix.isEmpty()) {
+                root.addDotAndDotDot();
+                dirs.add(root);
+            }
+            for (Inode d : dirs) {
+                if (d == root ? prefix.isEmpty() : (d.fullName() + "/").startsWith(prefix)) {
+                    d.mu.lock();
+                    d.dir.dirTime = now;
+                    d.mu.unlock();
+                }
+            }
+            log.info("Prefetched {} objects in {} dirs under {} in {}", objects.get(),
+                     dirs.size(), keyPrefix, Duration.between(start, now));
+        });
+    }
+
+    void saveSnapshot() {
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            snapshot.save(getInodeOrDie(RootInodeID));
+        } catch (Exception e) {
+            log.error("Saving metadata snapshot: {}", e.toString());
+        }
+    }
+
+    // A bounded pool of daemon threads; tasks beyond the cap queue up until a
+    // worker frees up. Idle workers exit so an idle mount holds no threads.
+    static ExecutorService newPool(final String name, final int workers) {
+        AtomicInteger n = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                workers, workers, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
     static int mapError(@Nullable final B2Exception e) {
         if (e == null) {
             return 0;
@@ -269,10 +465,6 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
             return null;
         }
 
-        if (flags.cache.length != 0) {
-            // TODO(ghart): catfs
-        }
-
         return fs;
     }
 
@@ -284,6 +476,18 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
     // Filey System Methods
     // -------------------
 
+    // FUSE_DESTROY (38)
+    @Override
+    protected void destroy() {
+        waitForWriteBacks();
+        // unlink returned already, they would be back on the next mount
+        waitForDeletes();
+        if (snapshotSaver != null) {
+            snapshotSaver.shutdownNow();
+        }
+        saveSnapshot();
+    }
+
     // FUSE_STATFS (17)
     @Override
     @SuppressWarnings("PointlessArithmeticExpression")
@@ -351,6 +555,9 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
     protected int setxattr(@Nonnull final String path, @Nonnull final String xattr,
                            @Nonnull final ByteBuffer buf, final long size, final int flags,
                            final int position) {
+        if (this.flags.fastDelete && xattr.equals(RMTREE_XATTR)) {
+            return rmtree(path);
+        }
         // not implemented
         return super.setxattr(path, xattr, buf, size, flags, position);
     }
@@ -361,21 +568,18 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
     // FUSE_OPENDIR (27)
     @Override
     protected int opendir(String path, StructFuseFileInfo info) {
-        mu.lock();
-
-        long handleID = nextHandleID;
-        nextHandleID++;
+        long handleID = allocateHandleId();
 
         Inode in = getInodeOrDie(lookUpInode(path));
-        mu.unlock();
+        if (snapshot != null) {
+            snapshot.restore(in);
+        }
 
         // XXX/is this a dir?
         DirHandle dh = in.openDir();
 
-        mu.lock();
         dirHandles.put(handleID, dh);
         info.fh(handleID);
-        mu.unlock();
 
         return 0;
     }
@@ -383,14 +587,14 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
     // FUSE_READDIR (28)
     @Override
     protected int readdir(@Nonnull final String path, @Nonnull final StructFuseFileInfo info,
-                          @Nonnull final DirectoryFiller filler) {  // TODO offset
-        long bytesRead = 0;
+                          @Nonnull final DirectoryFiller filler) {
+        // javafs always fills in libfuse's offset 0 mode, where libfuse keeps
+        // the listing and serves the kernel's continuations itself, so every
+        // call starts from the beginning
         long offset = 0;
 
         // Find the handle.
-        mu.lock();
         DirHandle dh = dirHandles.get(info.fh());
-        mu.unlock();
 
         assert dh != null;
 
@@ -398,18 +602,56 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
         inode.logFuse("ReadDir", offset);
 
         dh.mu.lock();
+        try {
+            // entries are listed as the filler asks for them, so nothing is
+            // buffered here and listing stops once the filler is full
+            ReadDirIterator it = new ReadDirIterator(dh, offset);
+            if (!filler.add(() -> it)) {
+                inode.logFuse("ReadDir filler full", it.offset);
+            }
+            return it.err;
+        } finally {
+            dh.mu.unlock();
+        }
+    }
+
+    // Produces the names of a dir handle starting at an offset.
+    // LOCKS_REQUIRED(dh.mu)
+    class ReadDirIterator implements Iterator<String> {
+
+        DirHandle dh;
+        long offset;
+        boolean readFromS3;
+        DirHandleEntry next;
+        boolean done;
+        int err;
+
+        ReadDirIterator(DirHandle dh, long offset) {
+            this.dh = dh;
+            this.offset = offset;
+        }
 
-        boolean readFromS3 = false;
-        List<String> dst = new ArrayList<>();
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (done) {
+                return false;
+            }
 
-        for (long i = offset; ; ++i) {
+            Inode inode = dh.inode;
             DirHandleEntry e;
             try {
-                e = dh.readDir(i);
+                e = dh.readDir(offset);
             } catch (NoSuchElementException err) {
-                return -Errno.EINVAL.intValue();
+                this.err = -Errno.EINVAL.intValue();
+                done = true;
+                return false;
             } catch (Exception err) {
-                return -Errno.EAGAIN.intValue();
+                this.err = -Errno.EAGAIN.intValue();
+                done = true;
+                return false;
             }
             if (e == null) {
                 // we've reached the end, if this was read
@@ -418,7 +660,8 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
                     inode.dir.dirTime = Instant.now();
                     inode.attributes.mTime = inode.findChildMaxTime();
                 }
-                break;
+                done = true;
+                return false;
             }
 
             if (e.inode == 0) {
@@ -426,54 +669,51 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
                 insertInodeFromDirEntry(inode, e);
             }
 
-            dst.add(makeDirEntry(e).name);
-
-            dh.inode.logFuse("<-- ReadDir", e.name, e.offset);
+            inode.logFuse("<-- ReadDir", e.name, e.offset);
 
-            //bytesRead += n;
+            next = e;
+            return true;
         }
 
-        filler.add(dst);
-        dh.mu.unlock();
-        return 0;
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            DirHandleEntry e = next;
+            next = null;
+            offset++;
+            return makeDirEntry(e).name;
+        }
     }
 
     // FUSE_RELEASEDIR (29)
     @Override
     protected int releasedir(String path, StructFuseFileInfo info) {
-        mu.lock();
-
-        DirHandle dh = dirHandles.get(info.fh());
+        DirHandle dh = dirHandles.remove(info.fh());
         dh.closeDir();
 
-        log.debug("ReleaseDirHandle %s", dh.inode.fullName());
+        log.debug("ReleaseDirHandle {}", dh.inode.fullName());
 
-        dirHandles.remove(info.fh());
-
-        mu.unlock();
         return 0;
     }
 
     // FUSE_OPEN (14)
     @Override
     protected int open(String path, StructFuseFileInfo info) {
-        mu.lock();
         Inode in = getInodeOrDie(lookUpInode(path));
-        mu.unlock();
+        // what's in B2 is stale until then
+        waitForWriteBacks(in);
 
         FileHandle fh = in.openFile();
 
-        mu.lock();
-
-        long handleID = nextHandleID;
-        nextHandleID++;
+        long handleID = allocateHandleId();
 
         fileHandles.put(handleID, fh);
 
         info.fh(handleID);
         info.keep_cache(true);
 
-        mu.unlock();
         return 0;
     }
 
@@ -483,9 +723,7 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
                        StructFuseFileInfo info) {
         AtomicInteger err = new AtomicInteger();
 
-        mu.lock();
         FileHandle fh = fileHandles.get(info.fh());
-        mu.unlock();
 
         int bytesRead = 0;
         try {
@@ -499,8 +737,15 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
     }
 
     // FUSE_FSYNC (20)
+    //
+    // With --write-back, close doesn't upload, so fsync does it right away.
+    // Like close, that finishes the object: writing on afterwards isn't
+    // supported.
     @Override
     protected int fsync(String path, int datasync, StructFuseFileInfo info) {
+        if (flags.writeBack) {
+            return flushHandle(fileHandles.get(info.fh()));
+        }
         /*
         // intentionally ignored, so that write()/sync()/write() works
         // see https://github.com/kahing/goofys/issues/154
@@ -510,22 +755,56 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
     }
 
     // FUSE_FLUSH (25)
+    //
+    // With --write-back, the file is uploaded once it's released instead,
+    // only earlier write errors are returned.
     @Override
     protected int flush(String path, StructFuseFileInfo info) {
-        // not implemented
-        return super.flush(path, info);
+        FileHandle fh = fileHandles.get(info.fh());
+        if (flags.writeBack) {
+            fh.mu.lock();
+            int err = fh.lastWriteError;
+            fh.mu.unlock();
+            return err;
+        }
+        return flushHandle(fh);
+    }
+
+    // Uploads what fh wrote since the last flush.
+    int flushHandle(@Nonnull final FileHandle fh) {
+        int err = fh.flushFile();
+        if (err != 0) {
+            // if we returned success from creat() earlier
+            // linux may think this file exists even when it doesn't,
+            // until TypeCacheTTL is over
+            if (fh.inode.knownSize == 0 && !fh.inode.s3Metadata.containsKey("etag")) {
+                fh.inode.mu.lock();
+                fh.inode.invalid = true;
+                fh.inode.mu.unlock();
+            }
+        }
+        return err;
     }
 
     // FUSE_RELEASE (18)
+    //
+    // With --write-back, a file that was written is uploaded in the
+    // background and released once that's done, so that close returns
+    // right away. Its data stays in the BufferPool until then, so writers
+    // wait for uploads if they get too far ahead. Until then, the inode is
+    // still open, so stat returns what was written; opening the file again,
+    // renaming or deleting it waits for the upload.
     @Override
     protected int release(String path, StructFuseFileInfo info) {
-        mu.lock();
-
         FileHandle fh = fileHandles.get(info.fh());
+        if (flags.writeBack && fh.dirty) {
+            writeBack(fh);
+            fileHandles.remove(info.fh());
+            return 0;
+        }
         try {
             fh.release();
         } catch (final Exception e) {
-            mu.unlock();
             return -Errno.EAGAIN.intValue();
         }
 
@@ -535,15 +814,52 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
 
         // try to compact heap
         //fs.bufferPool.MaybeGC()
-        mu.unlock();
         return 0;
     }
 
     // FUSE_CREATE (35)
     @Override
     protected int create(String path, long mode, StructFuseFileInfo info) {
-        // not implemented
-        return super.create(path, mode, info);
+        final String opName = path.substring(path.lastIndexOf('/') + 1);
+        final Inode parent;
+        try {
+            parent = getInodeOrDie(lookUpParent(path));
+        } catch (NoSuchElementException e) {
+            return -Errno.ENOENT.intValue();
+        }
+
+        // a new version mustn't be deleted with the old ones
+        waitForDelete(key(parent.getChildName(opName)));
+
+        FileHandle fh = parent.create(opName);
+        Inode inode = fh.inode;
+
+        parent.mu.lock();
+        Inode existing = parent.findChildUnlocked(opName, false);
+        if (existing == null) {
+            insertInode(parent, inode);
+        }
+        parent.mu.unlock();
+
+        if (existing != null) {
+            waitForWriteBacks(existing);
+            // replaced on flush, like any other file opened for writing
+            fh = existing.openFile();
+            fh.poolHandle = bufferPool;
+            fh.dirty = true;
+            inode = existing;
+            // truncated, knownSize is what's in B2 until it's replaced
+            inode.mu.lock();
+            inode.attributes.size = 0;
+            inode.mu.unlock();
+        }
+
+        long handleID = allocateHandleId();
+        fileHandles.put(handleID, fh);
+        info.fh(handleID);
+
+        inode.logFuse("<-- CreateFile");
+        return 0;
     }
 
     // FUSE_MKDIR (9)
@@ -554,9 +870,64 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
     }
 
     // FUSE_RMDIR (11)
+    //
+    // A directory listed within --type-cache-ttl is known to be empty from
+    // its children, without asking B2. Its "dir/" object, if there is one,
+    // is deleted in the background like in unlink.
     @Override
     protected int rmdir(String path) {
-        return super.rmdir(path);
+        final Inode parent;
+        final Inode inode;
+        try {
+            parent = getInodeOrDie(lookUpParent(path));
+            inode = getInodeOrDie(lookUpInode(path));
+        } catch (NoSuchElementException e) {
+            return -Errno.ENOENT.intValue();
+        }
+        if (!inode.isDir()) {
+            return -Errno.ENOTDIR.intValue();
+        }
+        if (inode.parent == null) {
+            return -Errno.EBUSY.intValue();
+        }
+
+        inode.logFuse("RmDir");
+
+        inode.mu.lock();
+        boolean listed = !expired(inode.dir.dirTime, flags.TypeCacheTtl);
+        boolean empty = true;
+        for (int i = 0; i < inode.dir.numChildren; ++i) {
+            Inode child = inode.dir.children[i];
+            if (!child.invalid && !child.name.equals(".") && !child.name.equals("..")) {
+                // maybe only here so far, but it's there
+                empty = false;
+                break;
+            }
+        }
+        inode.mu.unlock();
+        if (!empty) {
+            return -Errno.ENOTEMPTY.intValue();
+        }
+
+        final String dirKey = key(inode.fullName()) + "/";
+        if (!listed) {
+            try {
+                for (B2FileVersion obj : b2.fileNames(
+                        B2ListFileNamesRequest.builder(bucket.getBucketId()).setPrefix(dirKey)
+                                .build())) {
+                    if (!obj.getFileName().equals(dirKey)
+                        && !deletes.containsKey(obj.getFileName())) {
+                        return -Errno.ENOTEMPTY.intValue();
+                    }
+                }
+            } catch (B2Exception e) {
+                return mapError(e);
+            }
+        }
+
+        removeInode(parent, inode);
+        deleteInBackground(dirKey);
+        return 0;
     }
 
     // FUSE_SETATTR (4) - not implemented
@@ -565,22 +936,106 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
     @Override
     protected int write(String path, ByteBuffer buf, long bufSize, long writeOffset,
                         StructFuseFileInfo wrapper) {
-        // not implemented
-        return super.write(path, buf, bufSize, writeOffset, wrapper);
+        FileHandle fh = fileHandles.get(wrapper.fh());
+
+        int err = fh.writeFile(writeOffset, buf);
+        return (err == 0) ? (int) bufSize : err;
     }
 
     // FUSE_UNLINK (10)
+    //
+    // The file is gone from the inode tree right away and deleted from B2 in
+    // the background, so that rm -r of a huge directory costs a round trip
+    // per file only in parallel. Up to MAX_PENDING_DELETES deletions are
+    // queued before unlink waits; until one is done, listings and lookups
+    // skip the name and creating it again waits for it. Should the deletion
+    // fail, the file shows up again the next time its directory is listed.
     @Override
     protected int unlink(String path) {
-        // not implemented
-        return super.unlink(path);
+        final Inode parent;
+        final Inode inode;
+        try {
+            parent = getInodeOrDie(lookUpParent(path));
+            inode = getInodeOrDie(lookUpInode(path));
+        } catch (NoSuchElementException e) {
+            return -Errno.ENOENT.intValue();
+        }
+        if (inode.isDir()) {
+            return -Errno.EISDIR.intValue();
+        }
+
+        inode.logFuse("Unlink");
+        waitForWriteBacks(inode);
+
+        final String key = key(inode.fullName());
+        removeInode(parent, inode);
+        deleteInBackground(key);
+        return 0;
     }
 
     // FUSE_RENAME (12)
+    //
+    // B2 can't rename, so objects are copied within B2 and the originals
+    // deleted: a rename costs a few round trips per object, not its size.
+    // A directory is renamed by listing everything under it once and
+    // moving the objects in parallel. Like the copies themselves, that's
+    // not atomic; on error some objects may have moved already.
     @Override
     protected int rename(String path, String newName) {
-        // not implemented
-        return super.rename(path, newName);
+        final Inode parent;
+        final Inode newParent;
+        final Inode inode;
+        try {
+            parent = getInodeOrDie(lookUpParent(path));
+            newParent = getInodeOrDie(lookUpParent(newName));
+            inode = getInodeOrDie(lookUpInode(path));
+        } catch (NoSuchElementException e) {
+            return -Errno.ENOENT.intValue();
+        }
+        final String to = newName.substring(newName.lastIndexOf('/') + 1);
+
+        inode.logFuse("Rename", newParent.getChildName(to));
+        waitForWriteBacks(inode);
+
+        newParent.mu.lock();
+        Inode existing = newParent.findChildUnlockedFull(to);
+        newParent.mu.unlock();
+        if (existing == inode) {
+            return 0;
+        }
+        if (existing != null) {
+            // or it's uploaded over what's moved there
+            waitForWriteBacks(existing);
+        }
+
+        int err;
+        if (inode.isDir()) {
+            if (inode == newParent || inode.isParentOf(newParent)) {
+                return -Errno.EINVAL.intValue();
+            }
+            if (existing != null) {
+                if (!existing.isDir()) {
+                    return -Errno.ENOTDIR.intValue();
+                }
+                existing.mu.lock();
+                boolean empty = existing.dir.numChildren <= 2; // . and ..
+                existing.mu.unlock();
+                if (!empty) {
+                    return -Errno.ENOTEMPTY.intValue();
+                }
+            }
+            err = renameDir(key(inode.fullName()) + "/", key(newParent.getChildName(to)) + "/");
+        } else {
+            if (existing != null && existing.isDir()) {
+                return -Errno.EISDIR.intValue();
+            }
+            err = renameFile(key(inode.fullName()), key(newParent.getChildName(to)));
+        }
+
+        if (err == 0) {
+            moveInode(parent, inode, newParent, to);
+        }
+        return err;
     }
 
     // ------------------------
@@ -610,9 +1065,11 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
     // ----------------
 
     long allocateInodeId() {
-        long id = nextInodeID;
-        nextInodeID++;
-        return id;
+        return nextInodeID.getAndIncrement();
+    }
+
+    long allocateHandleId() {
+        return nextHandleID.getAndIncrement();
     }
 
     int cleanUpOldMPU() {
@@ -652,17 +1109,19 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
     /**
      * Find the given inode. Panic if it doesn't exist.
      */
-    synchronized Inode getInodeOrDie(final long id) {
+    Inode getInodeOrDie(final long id) {
         final Inode inode = inodes.get(id);
         assert inode != null;
         return inode;
     }
 
-    synchronized void insertInode(Inode parent, Inode inode) {
+    // LOCKS_REQUIRED(parent.mu)
+    void insertInode(Inode parent, Inode inode) {
         inode.id = allocateInodeId();
         parent.insertChildUnlocked(inode);
         inodes.put(inode.id, inode);
         paths.put(inode.fullName(), inode.id);
+        negativeCache.remove(inode.fullName());
     }
 
     Inode insertInodeFromDirEntry(Inode parent, DirHandleEntry entry) {
@@ -712,9 +1171,10 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
         return inode;
     }
 
-    synchronized long lookUpInode(@Nonnull final String path) {
-        if (paths.containsKey(path)) {
-            return paths.get(path);
+    long lookUpInode(@Nonnull final String path) {
+        final Long cached = paths.get(path);
+        if (cached != null) {
+            return cached;
         }
 
         // LookUpInodeOp
@@ -729,6 +1189,9 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
         log.debug("<-- LookUpInode {} {} {}", opParent, opName, "");
 
         Inode parent = getInodeOrDie(opParent);
+        if (snapshot != null) {
+            snapshot.restore(parent);
+        }
 
         parent.mu.lock();
         inode = parent.findChildUnlockedFull(opName);
@@ -754,12 +1217,20 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
         }
         parent.mu.unlock();
 
+        final String fullName = parent.getChildName(opName);
+        if (inode == null && (negativeCache.contains(fullName)
+                              || deletes.containsKey(key(fullName)))) {
+            log.debug("<-- LookUpInode {} {} cached ENOENT", opParent, opName);
+            throw new NoSuchElementException();
+        }
+
         if (!ok) {
             Inode newInode;
 
             try {
                 newInode = parent.lookUp(opName);
             } catch (NoSuchElementException e) {
+                negativeCache.add(fullName);
                 throw e;
             } catch (Exception e) {
                 if (inode != null) {
@@ -793,6 +1264,411 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
         return inode.id;
     }
 
+    // the directory path is in
+    long lookUpParent(@Nonnull final String path) {
+        return (path.lastIndexOf('/') > 0)
+               ? lookUpInode(path.substring(0, path.lastIndexOf('/')))
+               : Inode.RootInodeID;
+    }
+
+    // Moves the object from to the key to.
+    int renameFile(@Nonnull final String from, @Nonnull final String to) {
+        waitForDelete(to);
+
+        B2FileVersion src;
+        try {
+            Iterator<B2FileVersion> it = b2.fileNames(
+                    B2ListFileNamesRequest.builder(bucket.getBucketId()).setPrefix(from)
+                            .setMaxFileCount(1).build()).iterator();
+            src = it.hasNext() ? it.next() : null;
+        } catch (B2Exception e) {
+            return mapError(e);
+        }
+        if (src == null || !src.getFileName().equals(from)) {
+            // only here so far, it's uploaded under its new name on flush
+            return 0;
+        }
+
+        try {
+            renameObject(src, to);
+            return 0;
+        } catch (B2Exception e) {
+            return mapError(e);
+        }
+    }
+
+    // Moves every object under the prefix from to the prefix to.
+    int renameDir(@Nonnull final String from, @Nonnull final String to) {
+        List<B2FileVersion> objects = Collections.synchronizedList(new ArrayList<>());
+        try {
+            new RangeLister(this, listPool)
+                    .list(from, RangeLister.defaultBoundaries(from), objects::add).join();
+        } catch (CompletionException e) {
+            return copyError(e);
+        }
+
+        List<CompletableFuture<Void>> moves = new ArrayList<>(objects.size());
+        List<B2FileVersion> large = new ArrayList<>();
+        for (B2FileVersion obj : objects) {
+            String dst = to + obj.getFileName().substring(from.length());
+            if (obj.getContentLength() > MAX_COPY_SIZE) {
+                // its parts are copied in parallel already
+                large.add(obj);
+                continue;
+            }
+
+            // copy and delete are both quick, so they share a ticket
+            replicators.take(1, true);
+            moves.add(CompletableFuture.runAsync(() -> {
+                try {
+                    b2sc.copyFile(obj.getFileId(), dst);
+                    deleteObject(obj.getFileName());
+                } catch (B2Exception e) {
+                    throw new CompletionException(e);
+                } finally {
+                    replicators.release(1);
+                }
+            }, uploadPool));
+        }
+
+        int err = 0;
+        for (B2FileVersion obj : large) {
+            try {
+                renameObject(obj, to + obj.getFileName().substring(from.length()));
+            } catch (B2Exception e) {
+                err = mapError(e);
+            }
+        }
+        for (CompletableFuture<Void> move : moves) {
+            try {
+                move.join();
+            } catch (CompletionException e) {
+                if (err == 0) {
+                    err = copyError(e);
+                }
+            }
+        }
+        return err;
+    }
+
+    // Copies src to the key to and deletes every version of its key, so that
+    // no older one shows up under the old name.
+    void renameObject(@Nonnull final B2FileVersion src, @Nonnull final String to)
+            throws B2Exception {
+        copyObjectMaybeMultipart(src, to);
+        deleteObject(src.getFileName());
+    }
+
+    void copyObjectMaybeMultipart(@Nonnull final B2FileVersion src, @Nonnull final String to)
+            throws B2Exception {
+        if (src.getContentLength() > MAX_COPY_SIZE) {
+            copyObjectMultipart(src, to);
+            return;
+        }
+
+        replicators.take(1, true);
+        try {
+            b2sc.copyFile(src.getFileId(), to);
+        } finally {
+            replicators.release(1);
+        }
+    }
+
+    // Copies src to the key to as a large file, copying its parts in
+    // parallel.
+    void copyObjectMultipart(@Nonnull final B2FileVersion src, @Nonnull final String to)
+            throws B2Exception {
+        final long size = src.getContentLength();
+        final long partSize = Math.max(size / (FileHandle.MAX_PARTS - 1), MIN_COPY_PART_SIZE);
+        final int nParts = (int) ((size + partSize - 1) / partSize);
+
+        final String mpuId = b2.startLargeFile(
+                B2StartLargeFileRequest.builder(bucket.getBucketId(), to, src.getContentType())
+                        .setCustomFields(src.getFileInfo()).build()).getFileId();
+
+        List<CompletableFuture<B2Part>> parts = new ArrayList<>(nParts);
+        for (int i = 0; i < nParts; ++i) {
+            final int partNumber = i + 1;
+            final B2ByteRange range =
+                    B2ByteRange.between(i * partSize, Math.min(size, (i + 1) * partSize) - 1);
+
+            // taken here rather than in the pool, see Ticket
+            replicators.take(1, true);
+            parts.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return b2sc.copyPart(src.getFileId(), mpuId, partNumber, range);
+                } catch (B2Exception e) {
+                    throw new CompletionException(e);
+                } finally {
+                    replicators.release(1);
+                }
+            }, uploadPool));
+        }
+
+        List<String> sha1s = new ArrayList<>(nParts);
+        try {
+            for (CompletableFuture<B2Part> part : parts) {
+                sha1s.add(part.join().getContentSha1());
+            }
+        } catch (CompletionException e) {
+            try {
+                b2.cancelLargeFile(mpuId);
+            } catch (B2Exception ignored) {
+                // cleaned up by cleanUpOldMPU
+            }
+            if (e.getCause() instanceof B2Exception) {
+                throw (B2Exception) e.getCause();
+            }
+            throw new B2Exception("copy_failed", 500, null, "copying " + to, e.getCause());
+        }
+
+        b2.finishLargeFile(B2FinishLargeFileRequest.builder(mpuId, sha1s).build());
+    }
+
+    // the errno a copy or listing failed with
+    static int copyError(@Nonnull final CompletionException e) {
+        Throwable cause = e.getCause();
+        while (cause instanceof RuntimeException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof B2Exception) {
+            return mapError((B2Exception) cause);
+        }
+        log.error("copy failed", cause);
+        return -Errno.EIO.intValue();
+    }
+
+    // Moves inode, which was in parent, to newParent under the name to,
+    // replacing what was there.
+    void moveInode(@Nonnull final Inode parent, @Nonnull final Inode inode,
+                   @Nonnull final Inode newParent, @Nonnull final String to) {
+        // full names of the whole subtree change
+        List<Inode> subtree = subtree(inode);
+        for (Inode in : subtree) {
+            paths.remove(in.fullName());
+        }
+
+        // lock in a fixed order, so two renames in opposite directions
+        // can't deadlock
+        Inode first = (parent.id <= newParent.id) ? parent : newParent;
+        Inode second = (first == parent) ? newParent : parent;
+        first.mu.lock();
+        if (second != first) {
+            second.mu.lock();
+        }
+
+        Inode existing = newParent.findChildUnlockedFull(to);
+        if (existing != null) {
+            newParent.removeChildUnlocked(existing);
+            paths.remove(existing.fullName());
+            existing.invalid = true;
+        }
+        parent.removeChildUnlocked(inode);
+        inode.name = to;
+        inode.parent = newParent;
+        newParent.insertChildUnlocked(inode);
+
+        if (second != first) {
+            second.mu.unlock();
+        }
+        first.mu.unlock();
+
+        for (Inode in : subtree) {
+            paths.put(in.fullName(), in.id);
+        }
+        negativeCache.remove(inode.fullName());
+    }
+
+    // Drops inode, which was in parent, and everything under it from the
+    // inode tree.
+    void removeInode(@Nonnull final Inode parent, @Nonnull final Inode inode) {
+        final String fullName = inode.fullName();
+        for (Inode in : subtree(inode)) {
+            paths.remove(in.fullName());
+            inodes.remove(in.id);
+        }
+
+        parent.mu.lock();
+        if (parent.findChildUnlocked(inode.name, inode.isDir()) == inode) {
+            parent.removeChildUnlocked(inode);
+        }
+        inode.invalid = true;
+        parent.mu.unlock();
+
+        negativeCache.add(fullName);
+    }
+
+    // inode and everything under it, parents before their children
+    static List<Inode> subtree(@Nonnull final Inode inode) {
+        List<Inode> subtree = new ArrayList<>();
+        subtree.add(inode);
+        for (int i = 0; i < subtree.size(); ++i) {
+            Inode in = subtree.get(i);
+            if (in.isDir()) {
+                in.mu.lock();
+                for (int j = 0; j < in.dir.numChildren; ++j) {
+                    subtree.add(in.dir.children[j]);
+                }
+                in.mu.unlock();
+            }
+        }
+        return subtree;
+    }
+
+    // Deletes every version of key on deletePool, so that no older one
+    // shows up instead. Errors are only logged, nobody is waiting.
+    void deleteInBackground(@Nonnull final String key) {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        // taken here rather than in the pool, see Ticket
+        deleters.take(1, true);
+        deletes.put(key, done);
+        deletePool.execute(() -> {
+            try {
+                deleteObject(key);
+            } catch (B2Exception e) {
+                log.warn("Deleting {}: {}", key, e.toString());
+            } finally {
+                deleters.release(1);
+                deletes.remove(key, done);
+                done.complete(null);
+            }
+        });
+    }
+
+    // Uploads what fh wrote on writeBackPool, after any earlier upload of the
+    // same file, and releases it (--write-back). Errors are only logged,
+    // like those of a close whose result nobody checks.
+    void writeBack(@Nonnull final FileHandle fh) {
+        final Inode inode = fh.inode;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture<Void> prev = writeBacks.put(inode, done);
+        if (prev == null) {
+            prev = CompletableFuture.completedFuture(null);
+        }
+
+        prev.thenRunAsync(() -> {
+            try {
+                int err = flushHandle(fh);
+                if (err != 0) {
+                    log.error("Uploading {}: {}", inode.fullName(), err);
+                }
+                fh.release();
+            } catch (RuntimeException e) {
+                log.error("Uploading " + inode.fullName(), e);
+            } finally {
+                writeBacks.remove(inode, done);
+                done.complete(null);
+            }
+        }, writeBackPool);
+    }
+
+    // Waits for the background uploads of inode and everything under it.
+    void waitForWriteBacks(@Nonnull final Inode inode) {
+        for (Map.Entry<Inode, CompletableFuture<Void>> e : writeBacks.entrySet()) {
+            if (e.getKey() == inode || inode.isParentOf(e.getKey())) {
+                e.getValue().join();
+            }
+        }
+    }
+
+    // Waits for all background uploads.
+    void waitForWriteBacks() {
+        for (CompletableFuture<Void> done : writeBacks.values()) {
+            done.join();
+        }
+    }
+
+    // Waits for all background deletions.
+    void waitForDeletes() {
+        for (CompletableFuture<Void> done : deletes.values()) {
+            done.join();
+        }
+    }
+
+    // Waits for the background deletion of key, if there is one.
+    void waitForDelete(@Nonnull final String key) {
+        CompletableFuture<Void> done = deletes.get(key);
+        if (done != null) {
+            done.join();
+        }
+    }
+
+    // Deletes every version of key.
+    void deleteObject(@Nonnull final String key) throws B2Exception {
+        // versions are listed by name, then newest first
+        for (B2FileVersion version : b2.fileVersions(
+                B2ListFileVersionsRequest.builder(bucket.getBucketId()).setStartFileName(key)
+                        .setPrefix(key).build())) {
+            if (!version.getFileName().equals(key)) {
+                break;
+            }
+            b2.deleteFileVersion(version.getFileName(), version.getFileId());
+        }
+    }
+
+    // Removes the directory at path and everything under it (RMTREE_XATTR).
+    // Every version under its prefix is listed in one go and deleted
+    // DELETE_WORKERS at a time, instead of the readdir, unlink and rmdir
+    // per entry that rm -r takes. Like rename, that's not atomic: on error
+    // whatever wasn't deleted yet is still there.
+    int rmtree(@Nonnull final String path) {
+        final Inode parent;
+        final Inode inode;
+        try {
+            parent = getInodeOrDie(lookUpParent(path));
+            inode = getInodeOrDie(lookUpInode(path));
+        } catch (NoSuchElementException e) {
+            return -Errno.ENOENT.intValue();
+        }
+        if (!inode.isDir()) {
+            return -Errno.ENOTDIR.intValue();
+        }
+        if (inode.parent == null) {
+            return -Errno.EBUSY.intValue();
+        }
+
+        inode.logFuse("RmTree");
+        waitForWriteBacks(inode);
+
+        final String dirKey = key(inode.fullName()) + "/";
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        int err = 0;
+        try {
+            for (B2FileVersion version : b2.fileVersions(
+                    B2ListFileVersionsRequest.builder(bucket.getBucketId()).setPrefix(dirKey)
+                            .setMaxFileCount(DirHandle.LIST_PAGE_SIZE).build())) {
+                deleters.take(1, true);
+                pending.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        b2.deleteFileVersion(version.getFileName(), version.getFileId());
+                    } catch (B2Exception e) {
+                        throw new CompletionException(e);
+                    } finally {
+                        deleters.release(1);
+                    }
+                }, deletePool));
+            }
+        } catch (B2Exception e) {
+            err = mapError(e);
+        }
+
+        for (CompletableFuture<Void> d : pending) {
+            try {
+                d.join();
+            } catch (CompletionException e) {
+                if (err == 0) {
+                    err = copyError(e);
+                }
+            }
+        }
+
+        if (err == 0) {
+            removeInode(parent, inode);
+        }
+        return err;
+    }
+
     static Dirent makeDirEntry(DirHandleEntry en) {
         Dirent d = new Dirent();
         d.name = en.name;
@@ -803,7 +1679,18 @@ public class B2FuseFilesystem extends AbstractFuseFilesystem {
     }
 
     B2StreamClient newS3() {
-        return B2StreamClientBuilder.builder(awsConfig).build();
+        // connections are pooled and shared by every reader, see --max-conns
+        B2StreamClientBuilder builder = B2StreamClientBuilder.builder(awsConfig);
+        if (flags.maxConns > 0) {
+            builder.setMaxConnections(flags.maxConns);
+        }
+        if (flags.maxConnsPerHost > 0) {
+            builder.setMaxConnectionsPerRoute(flags.maxConnsPerHost);
+        }
+        if (!flags.connIdleTimeout.isZero()) {
+            builder.setIdleTimeoutSeconds((int) flags.connIdleTimeout.getSeconds());
+        }
+        return builder.build();
     }
 
     int testBucket() {
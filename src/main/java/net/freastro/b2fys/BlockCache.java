@@ -0,0 +1,154 @@
+package net.freastro.b2fys;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnull;
+
+// Mount-wide cache of object data in BLOCK_SIZE blocks, shared by every
+// file handle, so that a hot object is downloaded once no matter how many
+// processes read it or how often it's reopened.
+//
+// Blocks are keyed by a string identifying the object version (see
+// FileHandle.cacheKey) and the block index, and evicted least recently used
+// first once the cache holds maxBytes. Blocks are taken from the
+// BufferPool, so they count against the same memory budget as read and
+// write buffers, and are recycled on eviction rather than handed back, so
+// a full cache doesn't churn the pool.
+//
+// Readers fill it as they go: ReadStream collects sequentially read data
+// into a block from allocate() and hands it to put() once complete.
+class BlockCache {
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+
+    static class Key {
+
+        final String file;
+        final long index;
+
+        Key(String file, long index) {
+            this.file = file;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return index == k.index && file.equals(k.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, index);
+        }
+    }
+
+    long maxBytes;
+    BufferPool pool;
+
+    ReentrantLock mu = new ReentrantLock(); // everything below is protected by mu
+
+    // access ordered, so iteration starts at the least recently used block
+    LinkedHashMap<Key, ByteBuffer> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    // blocks in the map plus the ones handed out by allocate()
+    long numBlocks;
+    ArrayDeque<ByteBuffer> spare = new ArrayDeque<>();
+
+    long hits;
+    long misses;
+
+    BlockCache(long maxBytes, @Nonnull BufferPool pool) {
+        this.maxBytes = maxBytes;
+        this.pool = pool;
+    }
+
+    // Copies cached data of file starting at offset into dst, up to the end
+    // of the block. Returns the number of bytes copied, 0 if not cached.
+    int read(@Nonnull String file, long offset, @Nonnull ByteBuffer dst) {
+        mu.lock();
+        try {
+            ByteBuffer block = blocks.get(new Key(file, offset / BLOCK_SIZE));
+            int from = (int) (offset % BLOCK_SIZE);
+            if (block == null || from >= block.limit()) {
+                misses++;
+                return 0;
+            }
+            hits++;
+
+            ByteBuffer src = block.duplicate();
+            src.position(from);
+            src.limit(Math.min(block.limit(), from + dst.remaining()));
+            int n = src.remaining();
+            dst.put(src);
+            return n;
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    // Returns an empty block to fill, or null if the budget doesn't allow one.
+    ByteBuffer allocate() {
+        mu.lock();
+        try {
+            if (!spare.isEmpty()) {
+                return spare.pop();
+            }
+            if ((numBlocks + 1) * BLOCK_SIZE <= maxBytes) {
+                List<ByteBuffer> buffers = pool.requestMultiple(BLOCK_SIZE, false);
+                if (!buffers.isEmpty()) {
+                    numBlocks++;
+                    return buffers.get(0);
+                }
+                // the pool is busy with reads and writes, make do with what we have
+            }
+
+            // take over the least recently used block
+            Iterator<Map.Entry<Key, ByteBuffer>> it = blocks.entrySet().iterator();
+            if (!it.hasNext()) {
+                return null;
+            }
+            ByteBuffer block = it.next().getValue();
+            it.remove();
+            block.clear();
+            return block;
+        } catch (OutOfMemoryError e) {
+            return null;
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    // Caches block, filled from position 0 to its limit, as block index of file.
+    void put(@Nonnull String file, long index, @Nonnull ByteBuffer block) {
+        mu.lock();
+        try {
+            ByteBuffer old = blocks.put(new Key(file, index), block);
+            if (old != null && old != block) {
+                recycle(old);
+            }
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    // Gives back a block from allocate() that won't be cached after all.
+    void recycle(@Nonnull ByteBuffer block) {
+        mu.lock();
+        try {
+            block.clear();
+            spare.push(block);
+        } finally {
+            mu.unlock();
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.apache.logging.log4j.Logger;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -19,24 +20,29 @@ class Buffer {
 
     private static final int ErrUnexpectedEOF = 1;
 
-    Lock mu = new ReentrantLock();
+    // fair, so that a reader waiting on the buffer gets in between two
+    // writes of readLoop instead of readLoop taking the lock right back
+    Lock mu = new ReentrantLock(true);
     Condition cond;
 
     MBuf buf;
     InputStream reader;
     int err;
+    // readLoop has put everything it ever will into buf, so running out of
+    // buf is the end of the data rather than the reader catching up
+    boolean done;
 
     private Buffer() {
 
     }
 
-    static Buffer init(MBuf buf, ReaderProvider r) {
+    static Buffer init(MBuf buf, ReaderProvider r, Executor executor) {
         Buffer b = new Buffer();
 
         b.buf = buf;
         b.cond = b.mu.newCondition();
 
-        new Thread(() -> b.readLoop(r)).start();
+        executor.execute(() -> b.readLoop(r));
 
         return b;
     }
@@ -65,6 +71,7 @@ class Buffer {
             int nread = buf.writeFrom(reader, err);
             if (err.get() != 0) {
                 this.err = err.get();
+                done = (err.get() == -1);
                 mu.unlock();
                 break;
             }
@@ -76,18 +83,12 @@ class Buffer {
                 } catch (IOException e) {
                     // ignored
                 }
+                done = true;
                 mu.unlock();
                 break;
             }
 
             mu.unlock();
-            // if we got here we've read _something_, bounce this goroutine
-            // to allow another one to read
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-                // ignored
-            }
         }
         log.debug("<-- readLoop()");
     }
@@ -130,6 +131,7 @@ class Buffer {
                 System.exit(1);
             }
             err.set(this.err);
+            mu.unlock();
             return n;
         }
 
@@ -137,7 +139,11 @@ class Buffer {
             log.debug("reading {} from buffer", p.remaining());
 
             n = buf.read(p, err);
-            if (n == 0) {
+            if (n == 0 && done) {
+                // everything has been read, but keep the data around for
+                // rewind(); buf.read already reported EOF
+                log.debug("read all of buffer");
+            } else if (n == 0) {
                 buf.free();
                 buf = null;
                 log.debug("drained buffer");
@@ -155,6 +161,17 @@ class Buffer {
         return n;
     }
 
+    // Moves back n bytes, see MBuf.rewind. Once the buffer has been drained
+    // and reads go straight to the stream, there is nothing to rewind.
+    boolean rewind(long n) {
+        mu.lock();
+        try {
+            return buf != null && buf.rewind(n);
+        } finally {
+            mu.unlock();
+        }
+    }
+
     void close(AtomicInteger err) {
         mu.lock();
 
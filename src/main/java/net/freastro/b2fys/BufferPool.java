@@ -1,157 +1,306 @@
 package net.freastro.b2fys;
 
-import org.apache.commons.pool2.BasePooledObjectFactory;
-import org.apache.commons.pool2.ObjectPool;
-import org.apache.commons.pool2.PooledObject;
-import org.apache.commons.pool2.impl.DefaultPooledObject;
-import org.apache.commons.pool2.impl.GenericObjectPool;
-import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+// Hands out off-heap buffers from a fixed memory budget.
+//
+// Memory is allocated from the OS in BUF_SIZE direct slabs, at most
+// maxMemory / BUF_SIZE of them, and never handed back; the garbage
+// collector is not involved. A slab is either used whole or carved into
+// pieces of one of the smaller size classes, so that the tail of a read
+// doesn't pin a full 5MB. Once every piece of a carved slab is free again
+// the slab goes back to the free list and can be carved differently.
+//
+// requestMultiple() is all or nothing. Non-blocking callers (readahead)
+// get an empty list when the budget is exhausted and are expected to fall
+// back to something cheaper. Blocking callers wait in FIFO order, and a
+// request that could never fit in the budget fails instead of waiting
+// forever.
 class BufferPool {
 
     private static final Logger log = LogManager.getLogger(BufferPool.class);
 
     static final int BUF_SIZE = 5 * 1024 * 1024;
 
+    // piece sizes a slab can be carved into, smallest first; all divide BUF_SIZE
+    static final int[] SIZE_CLASSES = {64 * 1024, 256 * 1024, 1024 * 1024, BUF_SIZE};
+
+    private static final int SMALL_CLASS = 2; // 1MB, used to fill multi-MB tails
+
+    static class Slab {
+
+        ByteBuffer memory;
+        int sizeClass = -1;
+        int pieces;
+        ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+        Slab(ByteBuffer memory) {
+            this.memory = memory;
+        }
+    }
+
     ReentrantLock mu = new ReentrantLock();
     Condition cond;
 
+    long maxMemory;
+
+    int numSlabs;
+    int maxSlabs;
     long numBuffers;
-    long maxBuffers;
 
-    long totalBuffers;
-    long computedMaxBuffers;
+    ArrayDeque<Slab> freeSlabs = new ArrayDeque<>();
+    // per size class, carved slabs that still have free pieces
+    List<ArrayDeque<Slab>> partialSlabs = new ArrayList<>();
+    // piece -> slab it was carved from
+    Map<ByteBuffer, Slab> owners = new IdentityHashMap<>();
 
-    ObjectPool pool;
+    // FIFO order of blocked requests
+    long nextWaiter;
+    long headWaiter;
 
     BufferPool init() {
         cond = mu.newCondition();
 
-        computedMaxBuffers = maxBuffers;
+        if (maxMemory <= 0) {
+            maxMemory = defaultMaxMemory();
+        }
+        maxSlabs = (int) Math.max(maxMemory / BUF_SIZE, 1);
+        log.debug("using up to {} {}MB buffers", maxSlabs, BUF_SIZE / 1024 / 1024);
+
+        for (int i = 0; i < SIZE_CLASSES.length; ++i) {
+            partialSlabs.add(new ArrayDeque<>());
+        }
+
+        return this;
+    }
+
+    List<ByteBuffer> requestMultiple(long size, boolean block) {
+        int[] classes = sizeClassesFor(size);
 
-        final GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
-        poolConfig.setBlockWhenExhausted(false);
-        poolConfig.setMaxTotal(-1);
-        pool = new GenericObjectPool(new BasePooledObjectFactory() {
-            @Override
-            public Object create() {
-                return ByteBuffer.allocate(BUF_SIZE);
+        mu.lock();
+        try {
+            if (slabsNeeded(classes) > maxSlabs) {
+                log.error("Unable to allocate {} bytes, limit is {} bytes", size,
+                          (long) maxSlabs * BUF_SIZE);
+                return Collections.emptyList();
             }
 
-            @Override
-            public PooledObject wrap(Object o) {
-                return new DefaultPooledObject<>(o);
+            if (!block) {
+                // don't jump ahead of anyone who is already waiting
+                if (nextWaiter != headWaiter) {
+                    return Collections.emptyList();
+                }
+                List<ByteBuffer> buffers = tryAcquire(classes);
+                return (buffers != null) ? buffers : Collections.emptyList();
             }
-        }, poolConfig);
 
-        return this;
+            long ticket = nextWaiter++;
+            try {
+                while (true) {
+                    if (ticket == headWaiter) {
+                        List<ByteBuffer> buffers = tryAcquire(classes);
+                        if (buffers != null) {
+                            return buffers;
+                        }
+                        if (numBuffers == 0) {
+                            // nothing is in use and the memory still isn't there,
+                            // the allocation itself must have failed
+                            log.error("Unable to allocate {} bytes with no buffers in use",
+                                      size);
+                            return Collections.emptyList();
+                        }
+                    }
+                    cond.awaitUninterruptibly();
+                }
+            } finally {
+                headWaiter++;
+                cond.signalAll();
+            }
+        } finally {
+            mu.unlock();
+        }
     }
 
-    void recomputeBufferLimit() {
-        if (maxBuffers == 0) {
-            computedMaxBuffers = maxMemToUse(numBuffers);
-            if (computedMaxBuffers == 0) {
-                System.err.println("OOM");
-                System.exit(1);
-            }
+    // roughly how many bytes could be handed out right now without waiting
+    long available() {
+        mu.lock();
+        try {
+            return (long) (maxSlabs - numSlabs + freeSlabs.size()) * BUF_SIZE;
+        } finally {
+            mu.unlock();
         }
     }
 
-    List<ByteBuffer> requestMultiple(long size, boolean block) {
-        List<ByteBuffer> buffers = new ArrayList<>();
+    void free(ByteBuffer buf) {
+        mu.lock();
+        try {
+            Slab slab = owners.get(buf);
+            if (slab == null) {
+                log.error("freeing a buffer that is not from this pool");
+                return;
+            }
 
-        int nPages = pages(size, BUF_SIZE);
+            buf.clear();
+            numBuffers--;
 
-        mu.lock();
+            ArrayDeque<Slab> partial = partialSlabs.get(slab.sizeClass);
+            if (slab.free.isEmpty() && slab.pieces > 1) {
+                partial.add(slab);
+            }
+            slab.free.push(buf);
 
-        if (totalBuffers % 10 == 0) {
-            recomputeBufferLimit();
-        }
-
-        while (numBuffers + nPages > computedMaxBuffers) {
-            if (block) {
-                if (numBuffers == 0) {
-                    maybeGC();
-                    recomputeBufferLimit();
-                    if (numBuffers + nPages > computedMaxBuffers) {
-                        // we don't have any in use buffers, and we've made attempts to
-                        // free memory AND correct our limits, yet we still can't allocate.
-                        // it's likely that we are simply asking for too much
-                        log.error("Unable to allocate {} bytes, limit is {} bytes",
-                                  nPages * BUF_SIZE, computedMaxBuffers * BUF_SIZE);
-                        System.err.println("OOM");
-                        System.exit(1);
-                    }
+            if (slab.free.size() == slab.pieces) {
+                // the whole slab is unused, let it be carved into any size again
+                partial.remove(slab);
+                for (ByteBuffer b : slab.free) {
+                    owners.remove(b);
                 }
-                cond.awaitUninterruptibly();
-            } else {
-                mu.unlock();
-                return buffers;
+                slab.free.clear();
+                slab.sizeClass = -1;
+                freeSlabs.push(slab);
             }
+
+            cond.signalAll();
+        } finally {
+            mu.unlock();
         }
+    }
 
-        for (int i = 0; i < nPages; ++i) {
-            numBuffers++;
-            totalBuffers++;
-            ByteBuffer buf = null;
-            try {
-                buf = (ByteBuffer) pool.borrowObject();
-            } catch (Exception e) {
-                System.err.println(e);
-                System.exit(1);
+    // LOCKS_REQUIRED(mu)
+    private List<ByteBuffer> tryAcquire(int[] classes) {
+        List<ByteBuffer> buffers = new ArrayList<>(classes.length);
+        for (int c : classes) {
+            ByteBuffer b = acquire(c);
+            if (b == null) {
+                for (ByteBuffer acquired : buffers) {
+                    free(acquired);
+                }
+                return null;
             }
-            buffers.add(buf);
+            buffers.add(b);
         }
-
-        mu.unlock();
         return buffers;
     }
 
-    void maybeGC() {
-        if (numBuffers == 0) {
-            Runtime.getRuntime().gc();
+    // LOCKS_REQUIRED(mu)
+    private ByteBuffer acquire(int sizeClass) {
+        ArrayDeque<Slab> partial = partialSlabs.get(sizeClass);
+        Slab slab = partial.peek();
+        if (slab == null) {
+            slab = newSlab();
+            if (slab == null) {
+                return null;
+            }
+            carve(slab, sizeClass);
+            if (slab.pieces > 1) {
+                partial.add(slab);
+            }
+        }
+
+        ByteBuffer b = slab.free.pop();
+        if (slab.free.isEmpty()) {
+            partial.remove(slab);
         }
+        numBuffers++;
+        return b;
     }
 
-    void free(ByteBuffer buf) {
-        mu.lock();
+    // LOCKS_REQUIRED(mu)
+    private Slab newSlab() {
+        if (!freeSlabs.isEmpty()) {
+            return freeSlabs.pop();
+        }
+        if (numSlabs >= maxSlabs) {
+            return null;
+        }
 
-        buf.clear();
+        ByteBuffer memory;
         try {
-            pool.returnObject(buf);
-        } catch (Exception e) {
-            System.err.println(e);
-            System.exit(1);
+            memory = ByteBuffer.allocateDirect(BUF_SIZE);
+        } catch (OutOfMemoryError e) {
+            // the JVM's direct memory limit is below our budget, stay at what we have
+            log.warn("direct memory exhausted after {} buffers, lowering limit", numSlabs);
+            maxSlabs = Math.max(numSlabs, 1);
+            return null;
         }
-        numBuffers--;
-        cond.signal();
-
-        mu.unlock();
+        numSlabs++;
+        return new Slab(memory);
     }
 
-    private static long maxMemToUse(long buffersNow) {
-        Runtime m = Runtime.getRuntime();
+    // LOCKS_REQUIRED(mu)
+    private void carve(Slab slab, int sizeClass) {
+        int pieceSize = SIZE_CLASSES[sizeClass];
+        slab.sizeClass = sizeClass;
+        slab.pieces = BUF_SIZE / pieceSize;
+
+        ByteBuffer memory = slab.memory.duplicate();
+        for (int i = slab.pieces - 1; i >= 0; --i) {
+            memory.limit(i * pieceSize + pieceSize).position(i * pieceSize);
+            ByteBuffer piece = memory.slice();
+            owners.put(piece, slab);
+            slab.free.push(piece);
+        }
+    }
 
-        long available = m.maxMemory() - m.totalMemory() + m.freeMemory();
-        log.debug("amount of available memory: {}", available / 1024 / 1024);
+    // size classes of the buffers that make up a request of size bytes:
+    // whole BUF_SIZE buffers, then the tail in the smallest pieces that fit
+    static int[] sizeClassesFor(long size) {
+        int full = (int) (size / BUF_SIZE);
+        int tail = (int) (size % BUF_SIZE);
+
+        int tailClass = -1;
+        int tailPieces = 0;
+        if (tail != 0) {
+            for (int c = 0; c < SIZE_CLASSES.length; ++c) {
+                if (tail <= SIZE_CLASSES[c]) {
+                    tailClass = c;
+                    tailPieces = 1;
+                    break;
+                }
+            }
+            if (tailClass > SMALL_CLASS) {
+                tailPieces = pages(tail, SIZE_CLASSES[SMALL_CLASS]);
+                if (tailPieces * SIZE_CLASSES[SMALL_CLASS] < BUF_SIZE) {
+                    tailClass = SMALL_CLASS;
+                } else {
+                    tailPieces = 1;
+                }
+            }
+        }
 
-        long alloc = m.totalMemory() - m.freeMemory();
+        int[] classes = new int[full + tailPieces];
+        for (int i = 0; i < full; ++i) {
+            classes[i] = SIZE_CLASSES.length - 1;
+        }
+        for (int i = full; i < classes.length; ++i) {
+            classes[i] = tailClass;
+        }
+        return classes;
+    }
 
-        log.debug("amount of allocated memory: {} ", alloc / 1024 / 1024);
+    // upper bound on slabs a request needs when nothing else is in use
+    private static int slabsNeeded(int[] classes) {
+        long bytes = 0;
+        for (int c : classes) {
+            bytes += SIZE_CLASSES[c];
+        }
+        return pages(bytes, BUF_SIZE);
+    }
 
-        long max = available / 2;
-        long maxbuffers = Math.max(max / BUF_SIZE, 1);
-        log.debug("using up to {} {}MB buffers, now is {}", maxbuffers, BUF_SIZE / 1024 / 1024,
-                  buffersNow);
-        return maxbuffers;
+    // half of the heap limit, which is also the JVM's default limit on direct memory
+    private static long defaultMaxMemory() {
+        return Runtime.getRuntime().maxMemory() / 2;
     }
 
     private static int pages(long size, int pageSize) {
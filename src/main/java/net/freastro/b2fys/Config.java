@@ -10,7 +10,9 @@ class Config {
     Map<String, String> mountOptions;
     String mountPoint;
 
-    String[] cache;
+    String cacheDir;
+    double cacheFreeRatio;
+    long cacheFreeBytes;
     int dirMode;
     int fileMode;
     int uid;
@@ -33,6 +35,19 @@ class Config {
     boolean explicitDir;
     Duration statCacheTtl;
     Duration TypeCacheTtl;
+    int maxConns;
+    int maxConnsPerHost;
+    Duration connIdleTimeout;
+    long maxBufferMemory;
+    int readAheadWorkers;
+    long readAheadMin;
+    long readAheadMax;
+    long blockCacheSize;
+    String metadataSnapshot;
+    Duration metadataSnapshotInterval;
+    String prefetchMetadata;
+    boolean fastDelete;
+    boolean writeBack;
 
     // Debugging
     boolean debugFuse;
@@ -46,7 +61,9 @@ class Config {
         mountOptions = new HashMap<>(flags.mountOptions);
         mountPoint = flags.mountPoint;
 
-        cache = flags.cache;
+        cacheDir = flags.cacheDir;
+        cacheFreeRatio = flags.cacheFreeRatio;
+        cacheFreeBytes = flags.cacheFreeBytes;
         dirMode = flags.dirMode;
         fileMode = flags.fileMode;
         uid = flags.uid;
@@ -67,6 +84,19 @@ class Config {
         explicitDir = flags.explicitDir;
         statCacheTtl = flags.statCacheTtl;
         TypeCacheTtl = flags.TypeCacheTtl;
+        maxConns = flags.maxConns;
+        maxConnsPerHost = flags.maxConnsPerHost;
+        connIdleTimeout = flags.connIdleTimeout;
+        maxBufferMemory = flags.maxBufferMemory;
+        readAheadWorkers = flags.readAheadWorkers;
+        readAheadMin = flags.readAheadMin;
+        readAheadMax = flags.readAheadMax;
+        blockCacheSize = flags.blockCacheSize;
+        metadataSnapshot = flags.metadataSnapshot;
+        metadataSnapshotInterval = flags.metadataSnapshotInterval;
+        prefetchMetadata = flags.prefetchMetadata;
+        fastDelete = flags.fastDelete;
+        writeBack = flags.writeBack;
 
         debugFuse = flags.debugFuse;
         debugS3 = flags.debugS3;
@@ -9,11 +9,13 @@ import org.apache.logging.log4j.LogManager;
 import sun.awt.Mutex;
 
 import java.time.Instant;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 import java.util.function.Supplier;
@@ -23,50 +25,198 @@ import static net.freastro.b2fys.syscall.DT_File;
 
 class DirHandle {
 
+    // number of names requested per list call, B2 bills a Class C
+    // transaction per 1000
+    static final int LIST_PAGE_SIZE = 1000;
+
+    // pages each key range of a large listing is listed ahead of readDir
+    static final int RANGE_LOOKAHEAD = 4;
+
     Inode inode;
 
     Mutex mu = new Mutex(); // everything below is protected by mu
-    DirHandleEntry[] entries;
+    List<DirHandleEntry> entries;
     String marker;
     int baseOffset;
 
+    // the page starting at nextPageMarker, listed in the background while
+    // the current page is being returned
+    CompletableFuture<ListPage> nextPage;
+    String nextPageMarker;
+
+    // once a listing turns out to span several pages, the key ranges the
+    // rest of it is listed in that readDir hasn't got through, in order; see
+    // listRanges
+    ArrayDeque<ListRange> ranges;
+
+    // One page of a listing. marker is where the next page starts, or null if
+    // this was the last one. end is where the key range the page is of ends,
+    // null for the end of the listing.
+    static class ListPage {
+
+        List<B2FileVersion> objects;
+        String marker;
+        String end;
+
+        ListPage(List<B2FileVersion> objects, String marker) {
+            this(objects, marker, null);
+        }
+
+        ListPage(List<B2FileVersion> objects, String marker, String end) {
+            this.objects = objects;
+            this.marker = marker;
+            this.end = end;
+        }
+    }
+
+    // A key range of a listing, listed page after page on the list pool
+    // ahead of readDir, but no more than RANGE_LOOKAHEAD pages ahead. The
+    // next page is started as soon as one is listed, not when readDir takes
+    // it, so every range keeps going while readDir is busy with another.
+    class ListRange {
+
+        final String prefix;
+        final String end;
+
+        // listed or being listed, in order
+        final ArrayDeque<CompletableFuture<ListPage>> pages = new ArrayDeque<>();
+        // where the next page starts, and the name before it to leave out
+        String start;
+        String marker;
+        boolean listing;
+        boolean done;
+
+        ListRange(String prefix, String start, String marker, String end) {
+            this.prefix = prefix;
+            this.start = start;
+            this.marker = marker;
+            this.end = end;
+        }
+
+        // Lists the next page if there is one and the lookahead allows.
+        synchronized void fetch() {
+            if (listing || done || pages.size() >= RANGE_LOOKAHEAD) {
+                return;
+            }
+            listing = true;
+            final CompletableFuture<ListPage> page = new CompletableFuture<>();
+            pages.add(page);
+
+            final String start = this.start;
+            final String marker = this.marker;
+            inode.fs.listPool.execute(() -> {
+                ListPage listed;
+                try {
+                    listed = listObjectsPage(prefix, start, marker, end);
+                } catch (RuntimeException e) {
+                    synchronized (this) {
+                        listing = false;
+                        done = true;
+                    }
+                    page.completeExceptionally(e);
+                    return;
+                }
+
+                synchronized (this) {
+                    listing = false;
+                    if (listed.marker == null) {
+                        done = true;
+                    } else {
+                        this.start = listed.marker;
+                        this.marker = listed.marker;
+                    }
+                }
+                fetch();
+                page.complete(listed);
+            });
+        }
+
+        // The next page, or null once the whole range has been taken.
+        synchronized CompletableFuture<ListPage> take() {
+            fetch();
+            CompletableFuture<ListPage> page = pages.poll();
+            fetch();
+            return page;
+        }
+
+        // whether all of the range has been taken
+        synchronized boolean exhausted() {
+            return done && pages.isEmpty();
+        }
+
+        // stops listing ahead
+        synchronized void close() {
+            done = true;
+        }
+    }
+
     DirHandle(Inode inode) {
         this.inode = inode;
     }
 
     int closeDir() {
+        nextPage = null;
+        if (ranges != null) {
+            for (ListRange range : ranges) {
+                range.close();
+            }
+            ranges = null;
+        }
         return 0;
     }
 
-    B2ListFilesIterable listObjects(String prefix) {
-        Future<B2ListFilesIterable> slurpChan = null;
-        Future<B2ListFilesIterable> listChan = null;
+    ListPage listObjects(String prefix) {
+        Future<ListPage> slurpChan = null;
+        Future<ListPage> listChan = null;
 
         B2FuseFilesystem fs = inode.fs;
 
+        if (ranges != null && !ranges.isEmpty()) {
+            try {
+                // an empty page would end readDir, skip ranges with nothing in them
+                ListPage page;
+                do {
+                    ListRange range = ranges.peek();
+                    page = range.take().get();
+                    if (range.exhausted()) {
+                        ranges.poll();
+                    }
+                } while (page.objects.isEmpty() && !ranges.isEmpty());
+
+                // readDir asks for more as long as there is a marker
+                String next = (page.marker != null) ? page.marker : page.end;
+                return new ListPage(page.objects, ranges.isEmpty() ? null : next);
+            } catch (Exception err) {
+                throw new RuntimeException(err);
+            }
+        }
+
         // try to list without delimiter to see if we have to slurp up
         // multiple directories
         if (marker == null && !fs.flags.TypeCacheTtl.isZero()
             && (inode.parent != null && inode.parent.dir.seqOpenDirScore >= 2)) {
-            slurpChan = CompletableFuture.supplyAsync(() -> listObjectsSlurp(prefix));
+            slurpChan = CompletableFuture.supplyAsync(() -> listObjectsSlurp(prefix), fs.listPool);
         } else {
             slurpChan = null;
         }
 
-        Supplier<B2ListFilesIterable> listObjectsFlat = () -> {
-            final B2ListFileNamesRequest params = B2ListFileNamesRequest
-                    .builder(fs.bucket.getBucketId()).setDelimiter("/").setStartFileName(marker)
-                    .setPrefix(prefix).build();
+        // use the page we've been prefetching if it's the one we want
+        if (nextPage != null && Objects.equals(nextPageMarker, marker)) {
+            Future<ListPage> prefetched = nextPage;
+            nextPage = null;
             try {
-                return fs.b2.fileNames(params);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+                return prefetched.get();
+            } catch (Exception err) {
+                // ignored, list it again below
             }
-        };
+        }
+
+        final String marker = this.marker;
+        Supplier<ListPage> listObjectsFlat = () -> listObjectsPage(prefix, marker);
 
         if (!fs.flags.cheap) {
             // invoke the fallback in parallel if desired
-            listChan = CompletableFuture.supplyAsync(listObjectsFlat);
+            listChan = CompletableFuture.supplyAsync(listObjectsFlat, fs.listPool);
         }
 
         // first see if we get anything from the slurp
@@ -79,7 +229,7 @@ class DirHandle {
         }
 
         if (fs.flags.cheap) {
-            listChan = CompletableFuture.supplyAsync(listObjectsFlat);
+            listChan = CompletableFuture.supplyAsync(listObjectsFlat, fs.listPool);
         }
 
         // if we got an error (which may mean slurp is not applicable,
@@ -91,7 +241,105 @@ class DirHandle {
         }
     }
 
-    B2ListFilesIterable listObjectsSlurp(String prefix) {
+    // Lists at most LIST_PAGE_SIZE names directly under prefix, starting at
+    // marker (inclusive).
+    ListPage listObjectsPage(String prefix, String marker) {
+        return listObjectsPage(prefix, marker, marker, null);
+    }
+
+    // Lists at most LIST_PAGE_SIZE names directly under prefix from start
+    // (inclusive) to end (exclusive, or the end of the listing), leaving out
+    // marker, the last name of the page before.
+    ListPage listObjectsPage(String prefix, String start, String marker, String end) {
+        B2FuseFilesystem fs = inode.fs;
+
+        final B2ListFileNamesRequest params = B2ListFileNamesRequest
+                .builder(fs.bucket.getBucketId()).setDelimiter("/").setStartFileName(start)
+                .setPrefix(prefix).setMaxFileCount(LIST_PAGE_SIZE).build();
+
+        B2ListFilesIterable resp;
+        try {
+            resp = fs.b2.fileNames(params);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        // the iterable would fetch the following pages on demand, stop
+        // before it does so we can do that ourselves in the background
+        List<B2FileVersion> objects = new ArrayList<>();
+        String next = null;
+        int n = 0;
+        for (B2FileVersion obj : resp) {
+            if (end != null && obj.getFileName().compareTo(end) >= 0) {
+                // the next range's
+                break;
+            }
+            // start file name is inclusive, so after the first page the
+            // marker we returned last time counts towards this one
+            if (!obj.getFileName().equals(marker)) {
+                objects.add(obj);
+            }
+            if (++n == LIST_PAGE_SIZE) {
+                next = obj.getFileName();
+                break;
+            }
+        }
+
+        return new ListPage(objects, next, end);
+    }
+
+    // start listing the page after the current one, LOCKS_REQUIRED(mu)
+    void prefetchNextPage(String prefix) {
+        final String marker = this.marker;
+        nextPageMarker = marker;
+        nextPage = CompletableFuture.supplyAsync(() -> listObjectsPage(prefix, marker),
+                                                 inode.fs.listPool);
+    }
+
+    // Lists the rest of a listing whose first page was first as up to
+    // RangeLister.MAX_RANGES key ranges at once, so that a huge directory
+    // takes about as long as its largest range instead of one round trip per
+    // page. Each range lists at most RANGE_LOOKAHEAD pages ahead of readDir,
+    // so memory stays bounded however large the directory is. The ranges are
+    // cut at names we already know to be in the directory if there are
+    // enough (ex: its listing expired), otherwise where the first page
+    // suggests. Returns no ranges if there is nowhere to cut, and readDir
+    // goes on page by page. LOCKS_REQUIRED(mu)
+    ArrayDeque<ListRange> listRanges(String prefix, ListPage first) {
+        List<String> page = new ArrayList<>(first.objects.size());
+        for (B2FileVersion obj : first.objects) {
+            page.add(obj.getFileName());
+        }
+
+        List<String> known = new ArrayList<>();
+        inode.mu.lock();
+        for (int i = 0; i < inode.dir.numChildren; ++i) {
+            Inode child = inode.dir.children[i];
+            if (!child.name.equals(".") && !child.name.equals("..")) {
+                known.add(prefix + child.name + (child.isDir() ? "/" : ""));
+            }
+        }
+        inode.mu.unlock();
+
+        ArrayDeque<ListRange> ranges = new ArrayDeque<>();
+        List<String> boundaries = RangeLister.sampleBoundaries(prefix, page, known);
+        if (boundaries.isEmpty()) {
+            return ranges;
+        }
+
+        for (int i = 0; i <= boundaries.size(); ++i) {
+            // the first range goes on from first, the others start at their cut
+            final String start = (i == 0) ? first.marker : boundaries.get(i - 1);
+            final String marker = (i == 0) ? first.marker : null;
+            final String end = (i == boundaries.size()) ? null : boundaries.get(i);
+            ListRange range = new ListRange(prefix, start, marker, end);
+            range.fetch();
+            ranges.add(range);
+        }
+        return ranges;
+    }
+
+    ListPage listObjectsSlurp(String prefix) {
         B2ListFilesIterable resp;
 
         String marker = null;
@@ -118,13 +366,20 @@ class DirHandle {
             throw new RuntimeException();
         }
 
-        int num = (resp.iterator().hasNext()) ? 1 : 0;
-        if (num == 0) {
-            return resp;
-        }
+        // only hang on to what's in this dir, the rest is cached in the
+        // inode tree
+        List<B2FileVersion> objects = new ArrayList<>();
 
         Map<Inode, Boolean> dirs = new HashMap<>();
         for (B2FileVersion obj : resp) {
+            if (fs.deletes.containsKey(obj.getFileName())) {
+                // unlinked already
+                continue;
+            }
+            if (obj.getFileName().startsWith(prefix)) {
+                objects.add(obj);
+            }
+
             String baseName = obj.getFileName().substring(reqPrefix.length());
 
             int slash = baseName.indexOf('/');
@@ -171,14 +426,7 @@ class DirHandle {
         */
 
         // we only return this response if we are totally done with listing this dir
-        /*
-        if resp != nil {
-            resp.IsTruncated = aws.Bool(false)
-            resp.NextMarker = nil
-        }
-        */
-
-        return resp;
+        return new ListPage(objects, null);
     }
 
     static DirHandleEntry objectToDirEntry(B2FuseFilesystem fs, B2FileVersion obj, String name,
@@ -209,6 +457,10 @@ class DirHandle {
         // call or rewinddir has been called.
         if (offset == 0) {
             entries = null;
+            marker = null;
+            baseOffset = 0;
+            nextPage = null;
+            ranges = null;
         }
 
         DirHandleEntry en;
@@ -239,7 +491,7 @@ class DirHandle {
         int i = ((int) offset) - baseOffset - 2;
         assert i >= 0;
 
-        if (i >= (entries != null ? entries.length : 0)) {
+        if (i >= (entries != null ? entries.size() : 0)) {
             if (marker != null) {
                 // we need to fetch the next page
                 entries = null;
@@ -257,16 +509,20 @@ class DirHandle {
                 prefix += "/";
             }
 
-            B2ListFilesIterable resp;
+            ListPage resp;
             try {
                 resp = listObjects(prefix);
             } finally {
                 mu.lock();
             }
 
-            LogManager.getLogger("s3").debug(resp);
+            LogManager.getLogger("s3").debug("ListObjects {} {} = {} {}", prefix, marker,
+                                             resp.objects.size(), resp.marker);
+
+            // the listing supersedes anything we remembered as missing
+            fs.negativeCache.invalidateDir(inode.fullName());
 
-            entries = new DirHandleEntry[0];
+            entries = new ArrayList<>(resp.objects.size());
 
             // this is only returned for non-slurped responses
             /*
@@ -289,11 +545,15 @@ class DirHandle {
             */
 
             String lastDir = "";
-            for (B2FileVersion obj : resp) {
+            for (B2FileVersion obj : resp.objects) {
                 if (!obj.getFileName().startsWith(prefix)) {
                     // other slurped objects that we cached
                     continue;
                 }
+                if (fs.deletes.containsKey(obj.getFileName())) {
+                    // unlinked already
+                    continue;
+                }
 
                 String baseName = obj.getFileName().substring(prefix.length());
 
@@ -303,9 +563,7 @@ class DirHandle {
                         // shouldn't happen
                         continue;
                     }
-                    this.entries = Arrays.copyOf(this.entries, this.entries.length + 1);
-                    this.entries[this.entries.length - 1] =
-                            objectToDirEntry(fs, obj, baseName, false);
+                    addEntry(objectToDirEntry(fs, obj, baseName, false));
                 } else {
                     // this is a slurped up object which
                     // was already cached, unless it's a
@@ -319,8 +577,7 @@ class DirHandle {
                         en1.name = dir;
                         en1.type = DT_Directory;
                         en1.attributes = fs.rootAttrs;
-                        this.entries = Arrays.copyOf(this.entries, this.entries.length + 1);
-                        this.entries[this.entries.length - 1] = en1;
+                        addEntry(en1);
                     }
                     lastDir = dirName;
                 }
@@ -330,35 +587,49 @@ class DirHandle {
                 en.name = lastDir;
                 en.type = DT_Directory;
                 en.attributes = fs.rootAttrs;
-                this.entries = Arrays.copyOf(this.entries, this.entries.length + 1);
-                this.entries[this.entries.length - 1] = en;
+                addEntry(en);
             }
 
-            Arrays.sort(this.entries, Comparator.comparing(o -> o.name));
-
             // Fix up offset fields.
-            for (int i1 = 0; i1 < this.entries.length; i1++) {
-                en = this.entries[i1];
+            for (int i1 = 0; i1 < this.entries.size(); i1++) {
+                en = this.entries.get(i1);
                 // offset is 1 based, also need to account for "." and ".."
                 en.offset = (i1 + baseOffset) + 1 + 2;
             }
 
-            /*
-            if *resp.IsTruncated {
-                dh.Marker = resp.NextMarker
-            } else {
-                dh.Marker = nil
+            marker = resp.marker;
+            if (marker != null) {
+                if (ranges == null) {
+                    ranges = listRanges(prefix, resp);
+                }
+                if (ranges.isEmpty()) {
+                    prefetchNextPage(prefix);
+                }
             }
-            */
         }
 
-        if (i == entries.length) {
+        if (i == entries.size()) {
             // we've reached the end
             return null;
-        } else if (i > entries.length) {
+        } else if (i > entries.size()) {
             throw new NoSuchElementException();
         }
 
-        return entries[i];
+        return entries.get(i);
+    }
+
+    // Appends en to entries, keeping them sorted by name. B2 already returns
+    // names in order, but stripping the trailing / off a dir can move it ahead
+    // of its neighbours (ex: "a.txt" sorts before "a/" but after "a"), so walk
+    // it back into place. That's at most a few slots, so this stays linear
+    // overall. LOCKS_REQUIRED(mu)
+    void addEntry(DirHandleEntry en) {
+        int j = entries.size();
+        entries.add(en);
+        while (j > 0 && entries.get(j - 1).name.compareTo(en.name) > 0) {
+            entries.set(j, entries.get(j - 1));
+            j--;
+        }
+        entries.set(j, en);
     }
 }
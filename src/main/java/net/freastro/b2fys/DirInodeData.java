@@ -10,5 +10,8 @@ class DirInodeData {
     byte seqOpenDirScore;
     Instant dirTime = Instant.MIN;
 
+    // sorted with dirs first, then by name, see Inode.compareChild. Only
+    // the first numChildren slots are used, the rest is spare capacity.
     Inode[] children;
+    int numChildren;
 }
@@ -0,0 +1,345 @@
+package net.freastro.b2fys;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnull;
+
+// Persistent cache of object data under the --cache directory, so data
+// survives remounts and repeated passes over a bucket are read from local
+// disk instead of B2.
+//
+// Blocks are BlockCache.BLOCK_SIZE and live in
+//
+//     <dir>/<h[0:2]>/<h>/<block index>
+//
+// where h is the SHA-256 of the object version key (FileHandle.cacheKey:
+// name, size, upload time and content SHA1), so a replaced object never
+// matches old blocks. Each file is the block followed by the CRC32 of it,
+// written to a temporary file and renamed into place. A crash leaves at
+// worst a stray temporary file, removed on the next start, and a block
+// that doesn't check out is deleted and fetched again, so nothing needs
+// to be fsynced.
+//
+// Blocks are evicted least recently used first whenever free space on the
+// cache file system drops below the watermark (--cache "--free:10%:dir").
+class DiskCache {
+
+    private static final Logger log = LogManager.getLogger(DiskCache.class);
+
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int TRAILER_SIZE = Long.BYTES;
+    // check free space every this many stores
+    private static final int CHECK_EVERY = 64;
+    // mapped blocks kept around, 1GB of address space
+    static final int MAX_MAPPED = 1024;
+
+    Path dir;
+    // keep at least this fraction of the file system free...
+    double freeRatio;
+    // ...or at least this many bytes, whichever is more
+    long freeBytes;
+
+    ReentrantLock mu = new ReentrantLock(); // everything below is protected by mu
+
+    // block file -> size, access ordered so iteration starts at the least
+    // recently used block
+    LinkedHashMap<Path, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    long stores;
+    // block file -> its mapping, least recently used first. Mappings are
+    // released by the collector once dropped from here, which also keeps
+    // them valid for readers still copying out of them.
+    LinkedHashMap<Path, ByteBuffer> mapped = new LinkedHashMap<Path, ByteBuffer>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, ByteBuffer> eldest) {
+            return size() > MAX_MAPPED;
+        }
+    };
+
+    DiskCache(@Nonnull Path dir, double freeRatio, long freeBytes) {
+        this.dir = dir;
+        this.freeRatio = freeRatio;
+        this.freeBytes = freeBytes;
+    }
+
+    // Picks up blocks left by earlier mounts, oldest first, and cleans up
+    // after a crash.
+    DiskCache init() throws IOException {
+        Files.createDirectories(dir);
+
+        List<Path> found = new ArrayList<>();
+        Map<Path, BasicFileAttributes> attrs = new LinkedHashMap<>();
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.forEach(p -> {
+                try {
+                    BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+                    if (!a.isRegularFile()) {
+                        return;
+                    }
+                    if (p.getFileName().toString().endsWith(TMP_SUFFIX)) {
+                        Files.deleteIfExists(p);
+                        return;
+                    }
+                    found.add(p);
+                    attrs.put(p, a);
+                } catch (IOException e) {
+                    log.warn("Skipping {} in cache: {}", p, e.toString());
+                }
+            });
+        }
+        found.sort((a, b) -> attrs.get(a).lastModifiedTime()
+                .compareTo(attrs.get(b).lastModifiedTime()));
+
+        mu.lock();
+        try {
+            for (Path p : found) {
+                files.put(p, attrs.get(p).size());
+            }
+            evict();
+        } finally {
+            mu.unlock();
+        }
+
+        log.info("Using data cache at {} with {} blocks", dir, found.size());
+        return this;
+    }
+
+    Path objectDir(@Nonnull String key) {
+        String h = sha256(key);
+        return dir.resolve(h.substring(0, 2)).resolve(h);
+    }
+
+    // Indexes of the blocks of key that are on disk.
+    BitSet blocks(@Nonnull String key) {
+        BitSet blocks = new BitSet();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(objectDir(key))) {
+            for (Path p : ds) {
+                try {
+                    blocks.set(Integer.parseInt(p.getFileName().toString()));
+                } catch (NumberFormatException e) {
+                    // temporary file
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // nothing cached
+        } catch (IOException e) {
+            log.warn("Listing cache for {}: {}", key, e.toString());
+        }
+        return blocks;
+    }
+
+    // Copies data of block index of key, starting at from, into dst up to the
+    // end of the block. Returns the number of bytes copied, or -1 if the
+    // block isn't cached.
+    //
+    // Blocks are served from read-only mappings of their files, so a hit is a
+    // single copy from the page cache into dst and allocates nothing. The
+    // checksum is verified when a block is mapped; the MAX_MAPPED most
+    // recently used mappings are kept.
+    int read(@Nonnull String key, long index, int from, @Nonnull ByteBuffer dst) {
+        Path p = objectDir(key).resolve(Long.toString(index));
+
+        ByteBuffer block;
+        mu.lock();
+        try {
+            block = mapped.get(p);
+            if (block != null) {
+                files.get(p);
+            }
+        } finally {
+            mu.unlock();
+        }
+
+        if (block == null) {
+            block = map(p);
+            if (block == null) {
+                return -1;
+            }
+            mu.lock();
+            try {
+                mapped.put(p, block);
+                files.get(p);
+            } finally {
+                mu.unlock();
+            }
+        }
+
+        if (from >= block.limit()) {
+            return 0;
+        }
+        ByteBuffer src = block.duplicate();
+        src.position(from);
+        src.limit(Math.min(block.limit(), from + dst.remaining()));
+        int n = src.remaining();
+        dst.put(src);
+        return n;
+    }
+
+    // Maps the block stored in p and checks it, deleting it if it's damaged.
+    private ByteBuffer map(Path p) {
+        ByteBuffer block;
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            long size = ch.size() - TRAILER_SIZE;
+            if (size < 0 || size > BlockCache.BLOCK_SIZE) {
+                throw new IOException("bad size " + ch.size());
+            }
+
+            MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            m.position((int) size);
+            long sum = m.getLong();
+            m.clear().limit((int) size);
+            block = m.slice();
+
+            if (crc(block) != sum) {
+                throw new IOException("checksum mismatch");
+            }
+        } catch (NoSuchFileException e) {
+            forget(p);
+            return null;
+        } catch (IOException e) {
+            log.warn("Dropping cached block {}: {}", p, e.toString());
+            forget(p);
+            try {
+                Files.deleteIfExists(p);
+            } catch (IOException ignored) {
+                // it will be overwritten
+            }
+            return null;
+        }
+
+        try {
+            // so that the order survives a remount
+            Files.setLastModifiedTime(p, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // not important
+        }
+        return block;
+    }
+
+    // Writes block index of key, the data from position 0 to block's limit.
+    void store(@Nonnull String key, long index, @Nonnull ByteBuffer block) {
+        Path p = objectDir(key).resolve(Long.toString(index));
+        Path tmp = p.resolveSibling(p.getFileName() + "." + Thread.currentThread().getId()
+                                    + TMP_SUFFIX);
+        ByteBuffer data = block.duplicate();
+        data.position(0);
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        trailer.putLong(crc(data));
+        trailer.flip();
+
+        try {
+            Files.createDirectories(p.getParent());
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE,
+                                                   StandardOpenOption.CREATE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (data.hasRemaining() || trailer.hasRemaining()) {
+                    ch.write(new ByteBuffer[]{data, trailer});
+                }
+            }
+            Files.move(tmp, p, StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("Caching block {}: {}", p, e.toString());
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+                // removed on the next start
+            }
+            return;
+        }
+
+        mu.lock();
+        try {
+            files.put(p, (long) block.limit() + TRAILER_SIZE);
+            mapped.remove(p);
+            if (++stores % CHECK_EVERY == 0) {
+                evict();
+            }
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    private void forget(Path p) {
+        mu.lock();
+        try {
+            files.remove(p);
+            mapped.remove(p);
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    // LOCKS_REQUIRED(mu)
+    private void evict() {
+        try {
+            FileStore store = Files.getFileStore(dir);
+            long want = Math.max(freeBytes, (long) (store.getTotalSpace() * freeRatio));
+
+            Iterator<Path> it = files.keySet().iterator();
+            while (store.getUsableSpace() < want && it.hasNext()) {
+                Path p = it.next();
+                it.remove();
+                mapped.remove(p);
+                Files.deleteIfExists(p);
+                try {
+                    Files.deleteIfExists(p.getParent());
+                } catch (DirectoryNotEmptyException e) {
+                    // other blocks of the object are still cached
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Evicting from cache: {}", e.toString());
+        }
+    }
+
+    private static long crc(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        crc.update(data.duplicate());
+        return crc.getValue();
+    }
+
+    private static String sha256(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(s.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,21 +1,34 @@
 package net.freastro.b2fys;
 
+import com.backblaze.b2.client.contentSources.B2ContentTypes;
 import com.backblaze.b2.client.exceptions.B2Exception;
-import com.backblaze.b2.client.structures.B2DownloadByNameRequest;
-import com.backblaze.b2.util.B2ByteRange;
+import com.backblaze.b2.client.structures.B2FileVersion;
+import com.backblaze.b2.client.structures.B2FinishLargeFileRequest;
+import com.backblaze.b2.client.structures.B2GetUploadPartUrlRequest;
+import com.backblaze.b2.client.structures.B2Part;
+import com.backblaze.b2.client.structures.B2StartLargeFileRequest;
+import com.backblaze.b2.client.structures.B2UploadFileRequest;
+import com.backblaze.b2.client.structures.B2UploadPartRequest;
+import com.backblaze.b2.client.structures.B2UploadPartUrlResponse;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import sun.awt.Mutex;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Future;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import jnr.constants.platform.Errno;
@@ -24,18 +37,29 @@ class FileHandle {
 
     private static final Logger log = LogManager.getLogger(FileHandle.class);
 
-    private static final int MAX_READAHEAD = 100 * 1024 * 1024;
-    private static final int READAHEAD_CHUNK = 20 * 1024 * 1024;
+    // most parts B2 takes for a large file
+    static final int MAX_PARTS = 10000;
+
+    private static final long DEFAULT_MIN_READAHEAD = 5 * 1024 * 1024;
+    private static final long DEFAULT_MAX_READAHEAD = 100 * 1024 * 1024;
+    static final int READAHEAD_CHUNK = 20 * 1024 * 1024;
+    static final int MAX_STREAMS = 4;
 
     Inode inode;
 
+    // write
     String mpuKey;
     boolean dirty;
-    Future writeInit;
-    CountDownLatch mpuWG;
+    // b2_start_large_file of the current upload, yields its file ID
+    CompletableFuture<String> writeInit;
+    // part uploads in flight
+    List<CompletableFuture<Void>> mpuWG = new ArrayList<>();
+    // SHA1 of each part, filled in as parts are uploaded
     String[] etags;
+    // upload URLs that are free for the next part, see mpuPart
+    Queue<B2UploadPartUrlResponse> partUrls = new ConcurrentLinkedQueue<>();
 
-    Mutex mu = new Mutex();
+    Mutex mu = new Mutex(); // everything below is protected by mu
     String mpuId;
     long nextWriteOffset;
     int lastPartId;
@@ -46,47 +70,19 @@ class FileHandle {
     int lastWriteError;
 
     // read
-    InputStream reader;
-    long readBufOffset;
-
-    // parallel read
-    List<S3ReadBuffer> buffers = new ArrayList<>();
-    int existingReadahead;
-    long seqReadAmount;
+    // Independent sequential runs within the file, least recently used
+    // evicted first. See findStream.
+    List<ReadStream> streams = new ArrayList<>();
+    long numReads;
     long numOOORead; // number of out of order read
+    String cacheKey;
+    // blocks of the object in the disk cache, listed on first use
+    BitSet diskBlocks;
 
     FileHandle(Inode in) {
         this.inode = in;
     }
 
-    int readFromReadAhead(long offset, ByteBuffer buf, AtomicInteger err) {
-        int bytesRead = 0;
-
-        int nread = 0;
-        while (buffers != null && buffers.size() != 0) {
-            nread = buffers.get(0).read(offset + bytesRead, buf, err);
-            bytesRead += nread;
-            if (err.get() != 0) {
-                return bytesRead;
-            }
-
-            if (buffers.get(0).size == 0) {
-                // we've exhausted the first buffer
-                buffers.get(0).buf.close(new AtomicInteger());
-                buffers.remove(0);
-            }
-
-//            buf = buf[nread:];
-
-            if (buf.remaining() == 0) {
-                // we've filled the user buffer
-                return bytesRead;
-            }
-        }
-
-        return bytesRead;
-    }
-
     int readFile(long offset, ByteBuffer buf, AtomicInteger err) {
         int bytesRead = 0;
         inode.logFuse("ReadFile", offset, buf.remaining());
@@ -115,48 +111,64 @@ class FileHandle {
         return bytesRead;
     }
 
-    void readAhead(long offset, int needAtLeast, AtomicInteger err) {
-        existingReadahead = 0;
-        for (S3ReadBuffer b : buffers) {
-            existingReadahead += b.size;
-        }
-
-        int readAheadAmount = MAX_READAHEAD;
-
-        while (readAheadAmount - existingReadahead >= READAHEAD_CHUNK) {
-            long off = offset + existingReadahead;
-            long remaining = inode.attributes.size - off;
-
-            // only read up to readahead chunk each time
-            int size = Math.min(readAheadAmount - existingReadahead, READAHEAD_CHUNK);
-            // but don't read past the file
-            size = (int) Math.min(size, remaining);
-
-            if (size != 0) {
-                inode.logFuse("readahead", off, size, existingReadahead);
-
-                S3ReadBuffer readAheadBuf = S3ReadBuffer.init(this, off, size);
-                if (readAheadBuf != null) {
-                    buffers.add(readAheadBuf);
-                    existingReadahead += size;
-                } else {
-                    if (existingReadahead != 0) {
-                        // don't do more readahead now, but don't fail, cross our
-                        // fingers that we will be able to allocate the buffers
-                        // later
-                        err.set(0);
-                        return;
-                    } else {
-                        err.set(-Errno.ENOMEM.intValue());
-                    }
-                }
+    long minReadAhead() {
+        long min = inode.fs.flags.readAheadMin;
+        return (min > 0) ? min : DEFAULT_MIN_READAHEAD;
+    }
+
+    long maxReadAhead() {
+        long max = inode.fs.flags.readAheadMax;
+        return Math.max((max > 0) ? max : DEFAULT_MAX_READAHEAD, minReadAhead());
+    }
+
+    // Picks the stream a read at offset belongs to:
+    //
+    //  - a stream whose next sequential read is at offset;
+    //  - a stream offset is a little behind, if it still has that data;
+    //  - a stream offset is a little ahead of, either within what it has
+    //    already buffered or no further than its last read size (strided
+    //    reads such as every other page), after skipping forward;
+    //  - otherwise a new stream, evicting the least recently used one when
+    //    there are already MAX_STREAMS.
+    ReadStream findStream(long offset) {
+        for (ReadStream s : streams) {
+            if (s.readBufOffset == offset) {
+                return s;
             }
+        }
 
-            if (size != READAHEAD_CHUNK) {
-                // that was the last remaining chunk to readahead
-                break;
+        for (ReadStream s : streams) {
+            long gap = offset - s.readBufOffset;
+            if (gap < 0 && -gap <= s.rewindable()) {
+                // ReadStream.read serves it from data already read
+                return s;
             }
+            if (gap > 0 && (gap < s.bufferedAhead() || gap <= s.lastReadSize)) {
+                inode.logFuse("strided read", offset, s.readBufOffset);
+                s.skip(gap);
+                return s;
+            }
+        }
+
+        inode.logFuse("out of order read", offset, streams.size());
+        if (!streams.isEmpty()) {
+            numOOORead++;
         }
+
+        if (streams.size() >= MAX_STREAMS) {
+            ReadStream lru = streams.get(0);
+            for (ReadStream s : streams) {
+                if (s.lastUsed < lru.lastUsed) {
+                    lru = s;
+                }
+            }
+            lru.close();
+            streams.remove(lru);
+        }
+
+        ReadStream s = new ReadStream(this, offset);
+        streams.add(s);
+        return s;
     }
 
     int readFile2(long offset, ByteBuffer buf, AtomicInteger err) {
@@ -180,159 +192,435 @@ class FileHandle {
             poolHandle = fs.bufferPool;
         }
 
-        if (readBufOffset != offset) {
-            // XXX out of order read, maybe disable prefetching
-            inode.logFuse("out of order read", offset, readBufOffset);
+        BlockCache cache = fs.blockCache;
+        if (cache != null) {
+            bytesRead = cache.read(cacheKey(), offset, buf);
+            if (bytesRead > 0) {
+                inode.logFuse("< readFile cached", bytesRead);
+                return bytesRead;
+            }
+        }
 
-            readBufOffset = offset;
-            seqReadAmount = 0;
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    // ignored
-                }
-                reader = null;
+        bytesRead = readFromDisk(offset, buf);
+        if (bytesRead > 0) {
+            inode.logFuse("< readFile disk", bytesRead);
+            return bytesRead;
+        }
+
+        ReadStream s = findStream(offset);
+        s.lastUsed = ++numReads;
+        bytesRead = s.read(offset, buf, err);
+
+        inode.logFuse("< readFile", bytesRead, err);
+        return bytesRead;
+    }
+
+    // Copies data at offset from the disk cache into buf, up to the end of
+    // the block. Returns 0 if the block isn't on disk.
+    int readFromDisk(long offset, ByteBuffer buf) {
+        DiskCache disk = inode.fs.diskCache;
+        if (disk == null) {
+            return 0;
+        }
+
+        if (diskBlocks == null) {
+            diskBlocks = disk.blocks(cacheKey());
+        }
+        int index = (int) (offset / BlockCache.BLOCK_SIZE);
+        if (!diskBlocks.get(index)) {
+            return 0;
+        }
+
+        int n = disk.read(cacheKey(), index, (int) (offset % BlockCache.BLOCK_SIZE), buf);
+        if (n < 0) {
+            diskBlocks.clear(index);
+            return 0;
+        }
+        return n;
+    }
+
+    // Identifies the version of the object being read, for the block cache.
+    // B2 large files have no sha1, so size and mtime are part of it too.
+    String cacheKey() {
+        if (cacheKey == null) {
+            StringBuilder key = new StringBuilder(inode.fs.key(inode.fullName()));
+            key.append('\0').append(inode.attributes.size);
+            key.append('\0').append(inode.attributes.mTime);
+            ByteBuffer etag = inode.s3Metadata.get("etag");
+            if (etag != null) {
+                key.append('\0').append(new String(etag.array(), StandardCharsets.UTF_8));
+            }
+            cacheKey = key.toString();
+        }
+        return cacheKey;
+    }
+
+    // Appends data to the file. Only sequential writes are supported: data
+    // is copied into buffers from the BufferPool and each full part is
+    // uploaded in the background while the next one fills up, so the
+    // file is never staged anywhere else. Waits for buffer space when
+    // the pool runs out. Returns 0 or the error of an earlier write.
+    int writeFile(long offset, ByteBuffer data) {
+        inode.logFuse("WriteFile", offset, data.remaining());
+
+        mu.lock();
+        try {
+            if (lastWriteError != 0) {
+                return lastWriteError;
             }
 
-            if (buffers != null) {
-                // we misdetected
-                numOOORead++;
+            if (offset != nextWriteOffset) {
+                log.error("WriteFile: only sequential writes supported {} {} {}",
+                          inode.fullName(), nextWriteOffset, offset);
+                lastWriteError = -Errno.EOPNOTSUPP.intValue();
+                return lastWriteError;
             }
 
-            for (S3ReadBuffer b : buffers) {
-                b.buf.close(new AtomicInteger());
+            if (offset == 0) {
+                poolHandle = inode.fs.bufferPool;
+                dirty = true;
             }
-            buffers.clear();
-        }
 
-        if (!fs.flags.cheap && seqReadAmount >= READAHEAD_CHUNK && numOOORead < 3) {
-            if (reader != null) {
-                inode.logFuse("cutover to the parallel algorithm");
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    // ignored
+            while (true) {
+                // a full part is only sent once there's more to come, a
+                // file of exactly one part is uploaded as a small file
+                // since B2 wants at least two parts for a large one
+                if (buf != null && buf.full() && data.hasRemaining()) {
+                    int err = uploadCurrentBuf();
+                    if (err != 0) {
+                        return err;
+                    }
                 }
-                reader = null;
-            }
 
-            readAhead(offset, buf.remaining(), err);
-            if (err.get() == 0) {
-                bytesRead = readFromReadAhead(offset, buf, err);
-            } else {
-                // fall back to read serially
-                inode.logFuse("not enough memory, fallback to serial read");
-                seqReadAmount = 0;
-                for (S3ReadBuffer b : buffers) {
-                    b.buf.close(new AtomicInteger());
+                if (buf == null) {
+                    buf = MBuf.init(poolHandle, partSize(), true);
+                    if (buf == null) {
+                        lastWriteError = -Errno.ENOMEM.intValue();
+                        return lastWriteError;
+                    }
                 }
-                buffers = null;
 
-                bytesRead = readFromStream(offset, buf, err);
+                long nCopied = buf.write(data);
+                nextWriteOffset += nCopied;
+
+                if (!data.hasRemaining()) {
+                    break;
+                }
             }
-        } else {
-            bytesRead = readFromStream(offset, buf, err);
-        }
 
-        if (bytesRead > 0) {
-            readBufOffset += bytesRead;
-            seqReadAmount += bytesRead;
+            inode.attributes.size = nextWriteOffset;
+            return 0;
+        } finally {
+            mu.unlock();
         }
+    }
 
-        inode.logFuse("< readFile", bytesRead, err);
-        return bytesRead;
+    // Parts grow as the file does, so that the B2 limit of MAX_PARTS parts
+    // still allows for files of over 1TB.
+    long partSize() {
+        if (lastPartId < 1000) {
+            return 5 * 1024 * 1024;
+        } else if (lastPartId < 2000) {
+            return 25 * 1024 * 1024;
+        } else {
+            return 125 * 1024 * 1024;
+        }
     }
 
-    void release() {
-        // read buffers
-        for (S3ReadBuffer b : buffers) {
-            b.buf.close(new AtomicInteger());
+    // Starts the large file on the first part.
+    // LOCKS_REQUIRED(mu)
+    void initWrite() {
+        if (writeInit != null) {
+            return;
         }
-        buffers.clear();
 
-        if (reader != null) {
+        B2FuseFilesystem fs = inode.fs;
+        mpuKey = fs.key(inode.fullName());
+        etags = new String[MAX_PARTS];
+        writeInit = CompletableFuture.supplyAsync(() -> {
             try {
-                reader.close();
-            } catch (final IOException e) {
-                // ignored
+                return fs.b2.startLargeFile(B2StartLargeFileRequest.builder(
+                        fs.bucket.getBucketId(), mpuKey, B2ContentTypes.B2_AUTO).build())
+                        .getFileId();
+            } catch (B2Exception e) {
+                throw new CompletionException(e);
             }
-        }
+        }, fs.uploadPool);
+    }
 
-        // write buffers
-        if (poolHandle != null) {
-            if (buf != null && buf.buffers != null) {
-                if (lastWriteError == 0) {
-                    log.error("buf not freed but error is nil");
-                    System.exit(1);
+    // Sends buf off as the next part, in the background.
+    // LOCKS_REQUIRED(mu)
+    int uploadCurrentBuf() {
+        // catch errors of earlier parts early
+        Iterator<CompletableFuture<Void>> it = mpuWG.iterator();
+        while (it.hasNext()) {
+            CompletableFuture<Void> f = it.next();
+            if (f.isDone()) {
+                it.remove();
+                int err = uploadError(f);
+                if (err != 0) {
+                    lastWriteError = err;
+                    return err;
                 }
-
-                buf.free();
-                // the other in-flight multipart PUT buffers will be
-                // freed when they finish/error out
             }
         }
 
-        inode.mu.lock();
+        // what comes next needs a part too
+        if (lastPartId + 1 == MAX_PARTS) {
+            lastWriteError = -Errno.EFBIG.intValue();
+            return lastWriteError;
+        }
 
-        assert inode.fileHandles != 0;
+        initWrite();
+        lastPartId++;
+        int part = lastPartId;
+        MBuf buf = this.buf;
+        this.buf = null;
+
+        // wait for a slot, which also keeps us from filling the next buffer
+        // while too many are waiting to be sent
+        Ticket replicators = inode.fs.replicators;
+        replicators.take(1, true);
+        mpuWG.add(writeInit.handleAsync((uploadId, initError) -> {
+            try {
+                if (initError != null) {
+                    // the error is reported by writeInit
+                    buf.free();
+                    return null;
+                }
+                mpuPart(uploadId, buf, part);
+                return null;
+            } finally {
+                replicators.release(1);
+            }
+        }, inode.fs.uploadPool));
+        return 0;
+    }
 
-        inode.fileHandles -= 1;
-        inode.mu.unlock();
+    // Uploads buf as part number part of uploadId and frees it.
+    //
+    // B2 wants an upload URL per concurrent upload. URLs are kept for the
+    // next part once a part went through, so there's only a round trip for
+    // one when the number of parts in flight grows. A URL that failed is
+    // dropped, as B2 asks.
+    void mpuPart(String uploadId, MBuf buf, int part) {
+        B2FuseFilesystem fs = inode.fs;
+        try {
+            B2UploadPartUrlResponse url = partUrls.poll();
+            if (url == null) {
+                url = fs.b2.getUploadPartUrl(B2GetUploadPartUrlRequest.builder(uploadId).build());
+            }
+            B2Part resp = fs.b2sc.uploadPart(
+                    url, B2UploadPartRequest.builder(part, buf.contentSource()).build());
+            partUrls.add(url);
+            etags[part - 1] = resp.getContentSha1();
+        } catch (B2Exception e) {
+            throw new CompletionException(e);
+        } finally {
+            buf.free();
+        }
     }
 
-    int readFromStream(long offset, ByteBuffer buf, AtomicInteger err) {
-        int bytesRead = 0;
+    // Finishes the upload of what was written since the last flush.
+    // Returns 0 or the write error.
+    int flushFile() {
+        mu.lock();
+        try {
+            inode.logFuse("FlushFile");
 
-        if (offset >= inode.attributes.size) {
-            // nothing to read
-            if (inode.fs.flags.debugFuse) {
-                inode.logFuse("< readFromStream", bytesRead);
+            if (!dirty || lastWriteError != 0) {
+                int err = lastWriteError;
+                if (err != 0) {
+                    resetToKnownSize();
+                }
+                return err;
             }
-            return bytesRead;
+
+            int err = (lastPartId == 0) ? flushSmallFile() : flushLargeFile();
+            if (err != 0) {
+                lastWriteError = err;
+                if (mpuId != null) {
+                    String uploadId = mpuId;
+                    inode.fs.uploadPool.execute(() -> {
+                        try {
+                            inode.fs.b2.cancelLargeFile(uploadId);
+                        } catch (B2Exception e) {
+                            // cleaned up by cleanUpOldMPU
+                        }
+                    });
+                }
+                resetToKnownSize();
+            }
+
+            writeInit = null;
+            mpuWG.clear();
+            mpuId = null;
+            nextWriteOffset = 0;
+            lastPartId = 0;
+            return err;
+        } finally {
+            mu.unlock();
         }
+    }
 
+    // Uploads a file that fits in one part with a single request.
+    // LOCKS_REQUIRED(mu)
+    int flushSmallFile() {
         B2FuseFilesystem fs = inode.fs;
+        MBuf buf = this.buf;
+        this.buf = null;
+        if (buf == null) {
+            buf = MBuf.init(poolHandle, 0, true);
+        }
 
-        if (reader == null) {
-            String fileName = fs.key(inode.fullName());
-            B2DownloadByNameRequest.Builder params = B2DownloadByNameRequest
-                    .builder(fs.bucket.getBucketName(), fileName);
+        fs.replicators.take(1, true);
+        try {
+            B2FileVersion resp = fs.b2.uploadSmallFile(B2UploadFileRequest.builder(
+                    fs.bucket.getBucketId(), fs.key(inode.fullName()), B2ContentTypes.B2_AUTO,
+                    buf.contentSource()).build());
+            uploaded(resp);
+            return 0;
+        } catch (B2Exception e) {
+            return B2FuseFilesystem.mapError(e);
+        } finally {
+            fs.replicators.release(1);
+            buf.free();
+        }
+    }
 
-            if (offset != 0) {
-                B2ByteRange bytes = B2ByteRange.between(offset, offset + buf.remaining() - 1);
-                params.setRange(bytes);
-            }
+    // Waits for the parts in flight, uploads what's left as the last part
+    // and puts the parts together.
+    // LOCKS_REQUIRED(mu)
+    int flushLargeFile() {
+        B2FuseFilesystem fs = inode.fs;
 
-            try {
-                reader = fs.b2sc.streamByName(params.build());
-            } catch (B2Exception e) {
-                err.set(-Errno.EIO.intValue());
-                if (inode.fs.flags.debugFuse) {
-                    inode.logFuse("< readFromStream", bytesRead);
-                }
-                return bytesRead;
+        int err = uploadError(writeInit);
+        if (err == 0) {
+            mpuId = writeInit.join();
+        }
+        for (CompletableFuture<Void> f : mpuWG) {
+            int partErr = uploadError(f);
+            if (err == 0) {
+                err = partErr;
             }
         }
+        mpuWG.clear();
 
-        bytesRead = MBuf.read(buf, reader, err);
-        if (err.get() != 0) {
-            if (err.get() != -1) {
-                inode.logFuse("< readFromStream error", bytesRead, err.get());
+        int nParts = lastPartId;
+        if (buf != null) {
+            MBuf buf = this.buf;
+            this.buf = null;
+            if (err != 0 || buf.size() == 0) {
+                buf.free();
+            } else if (nParts == MAX_PARTS) {
+                buf.free();
+                err = -Errno.EFBIG.intValue();
+            } else {
+                // sent from the upload pool like the other parts
+                final int part = ++nParts;
+                final String uploadId = mpuId;
+                fs.replicators.take(1, true);
+                err = uploadError(CompletableFuture.runAsync(() -> {
+                    try {
+                        mpuPart(uploadId, buf, part);
+                    } finally {
+                        fs.replicators.release(1);
+                    }
+                }, fs.uploadPool));
             }
-            // always retry error on read
-            try {
-                reader.close();
-            } catch (IOException e) {
-                // ignored
+        }
+        if (err != 0) {
+            return err;
+        }
+
+        try {
+            B2FileVersion resp = fs.b2.finishLargeFile(B2FinishLargeFileRequest.builder(
+                    mpuId, Arrays.asList(etags).subList(0, nParts)).build());
+            mpuId = null;
+
+            // we want to get key from inode because the file could have been renamed
+            String key = fs.key(inode.fullName());
+            if (!key.equals(mpuKey)) {
+                fs.renameObject(resp, key);
             }
-            reader = null;
-            err.set(0);
+
+            uploaded(resp);
+            return 0;
+        } catch (B2Exception e) {
+            return B2FuseFilesystem.mapError(e);
         }
+    }
 
-        if (inode.fs.flags.debugFuse) {
-            inode.logFuse("< readFromStream", bytesRead);
+    // Records what B2 has now.
+    // LOCKS_REQUIRED(mu)
+    private void uploaded(B2FileVersion resp) {
+        inode.mu.lock();
+        inode.invalid = false;
+        inode.knownSize = inode.attributes.size;
+        if (resp != null) {
+            inode.attributes.mTime = resp.getUploadTimestamp() / 1000;
+            inode.s3Metadata.put("etag", ByteBuffer.wrap(
+                    resp.getContentSha1().getBytes(StandardCharsets.UTF_8)));
         }
-        return bytesRead;
+        inode.attrTime = Instant.now();
+        inode.mu.unlock();
+
+        // what was cached for reading is of the old object
+        cacheKey = null;
+        diskBlocks = null;
+        dirty = false;
+    }
+
+    // LOCKS_REQUIRED(mu)
+    private void resetToKnownSize() {
+        inode.attributes.size = inode.knownSize;
+    }
+
+    // the errno a step of the upload failed with, 0 if it succeeded
+    private static int uploadError(CompletableFuture<?> f) {
+        try {
+            f.join();
+            return 0;
+        } catch (CompletionException | CancellationException e) {
+            return uploadError(e);
+        }
+    }
+
+    private static int uploadError(RuntimeException e) {
+        Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+        if (cause instanceof B2Exception) {
+            return B2FuseFilesystem.mapError((B2Exception) cause);
+        }
+        log.error("upload failed", cause);
+        return -Errno.EIO.intValue();
+    }
+
+    void release() {
+        // read buffers
+        for (ReadStream s : streams) {
+            s.close();
+        }
+        streams.clear();
+
+        // write buffers
+        if (poolHandle != null) {
+            if (buf != null && buf.buffers != null) {
+                if (lastWriteError == 0) {
+                    log.error("buf not freed but error is nil");
+                    System.exit(1);
+                }
+
+                buf.free();
+                // the other in-flight multipart PUT buffers will be
+                // freed when they finish/error out
+            }
+        }
+
+        inode.mu.lock();
+
+        assert inode.fileHandles != 0;
+
+        inode.fileHandles -= 1;
+        inode.mu.unlock();
     }
 }
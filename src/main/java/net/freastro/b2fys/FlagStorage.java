@@ -15,13 +15,20 @@ class FlagStorage {
 
     private static final Logger log = LogManager.getLogger(FlagStorage.class);
 
+    static final double DEFAULT_CACHE_FREE_RATIO = 0.1;
+
     // File system
     Map<String, String> mountOptions = new HashMap<>();
     String mountPoint = "";
     String mountPointArg = "";
     String mountPointCreated = "";
 
-    String[] cache = new String[0];
+    // data cache directory, null if --cache is off
+    String cacheDir;
+    // keep this fraction of the cache file system free...
+    double cacheFreeRatio;
+    // ...or this many bytes, whichever is more
+    long cacheFreeBytes;
     int dirMode;
     int fileMode;
     int uid;
@@ -44,6 +51,20 @@ class FlagStorage {
     boolean explicitDir;
     Duration statCacheTtl = Duration.ZERO;
     Duration TypeCacheTtl = Duration.ZERO;
+    int maxConns;
+    int maxConnsPerHost;
+    Duration connIdleTimeout = Duration.ZERO;
+    long maxBufferMemory;
+    int readAheadWorkers;
+    long readAheadMin;
+    long readAheadMax;
+    long blockCacheSize;
+    String metadataSnapshot;
+    Duration metadataSnapshotInterval = Duration.ZERO;
+    // prefix to list at mount, "" for the whole bucket, null if off
+    String prefetchMetadata;
+    boolean fastDelete;
+    boolean writeBack;
 
     // Debugging
     boolean debugFuse;
@@ -57,7 +78,9 @@ class FlagStorage {
         mountOptions = new HashMap<>(config.mountOptions);
         mountPoint = config.mountPoint;
 
-        cache = config.cache;
+        cacheDir = config.cacheDir;
+        cacheFreeRatio = config.cacheFreeRatio;
+        cacheFreeBytes = config.cacheFreeBytes;
         dirMode = config.dirMode;
         fileMode = config.fileMode;
         uid = config.uid;
@@ -78,6 +101,19 @@ class FlagStorage {
         explicitDir = config.explicitDir;
         statCacheTtl = config.statCacheTtl;
         TypeCacheTtl = config.TypeCacheTtl;
+        maxConns = config.maxConns;
+        maxConnsPerHost = config.maxConnsPerHost;
+        connIdleTimeout = config.connIdleTimeout;
+        maxBufferMemory = config.maxBufferMemory;
+        readAheadWorkers = config.readAheadWorkers;
+        readAheadMin = config.readAheadMin;
+        readAheadMax = config.readAheadMax;
+        blockCacheSize = config.blockCacheSize;
+        metadataSnapshot = config.metadataSnapshot;
+        metadataSnapshotInterval = config.metadataSnapshotInterval;
+        prefetchMetadata = config.prefetchMetadata;
+        fastDelete = config.fastDelete;
+        writeBack = config.writeBack;
 
         debugFuse = config.debugFuse;
         debugS3 = config.debugS3;
@@ -152,6 +188,20 @@ class FlagStorage {
         flags.explicitDir = c.noImplicitDir;
         flags.statCacheTtl = Duration.of(c.statCacheTtl, ChronoUnit.SECONDS);
         flags.TypeCacheTtl = Duration.of(c.typeCacheTtl, ChronoUnit.SECONDS);
+        flags.maxConns = c.maxConns;
+        flags.maxConnsPerHost = c.maxConnsPerHost;
+        flags.connIdleTimeout = Duration.of(c.connIdleTimeout, ChronoUnit.SECONDS);
+        flags.maxBufferMemory = (long) c.maxBufferMemory * 1024 * 1024;
+        flags.readAheadWorkers = c.readAheadWorkers;
+        flags.readAheadMin = (long) c.readAheadMin * 1024 * 1024;
+        flags.readAheadMax = (long) c.readAheadMax * 1024 * 1024;
+        flags.blockCacheSize = (long) c.blockCacheSize * 1024 * 1024;
+        flags.metadataSnapshot = c.metadataSnapshot;
+        flags.metadataSnapshotInterval = Duration.of(c.metadataSnapshotInterval,
+                                                     ChronoUnit.SECONDS);
+        flags.prefetchMetadata = c.prefetchMetadata;
+        flags.fastDelete = c.fastDelete;
+        flags.writeBack = c.writeBack;
         // S3
         flags.endpoint = c.endpoint;
         flags.region = c.region;
@@ -177,7 +227,9 @@ class FlagStorage {
         flags.mountPoint = flags.mountPointArg;
 
         if (c.cache != null && !c.cache.isEmpty()) {
-            // TODO(ghart): cache
+            if (!parseCache(flags, c.cache)) {
+                return null;
+            }
         }
 
         // KMS implies SSE
@@ -188,6 +240,59 @@ class FlagStorage {
         return flags;
     }
 
+    // Parses --cache "[--free:N%|N[KMG]:]DIR".
+    static boolean parseCache(FlagStorage flags, String cache) {
+        flags.cacheFreeRatio = DEFAULT_CACHE_FREE_RATIO;
+        flags.cacheFreeBytes = 0;
+
+        String[] parts = cache.split(":");
+        int i = 0;
+        while (i < parts.length - 1 && parts[i].startsWith("--")) {
+            String opt = parts[i++];
+            if (!opt.equals("--free")) {
+                log.error("Unknown cache option {}", opt);
+                return false;
+            }
+            String value = parts[i++];
+            try {
+                if (value.endsWith("%")) {
+                    flags.cacheFreeRatio =
+                            Double.parseDouble(value.substring(0, value.length() - 1)) / 100;
+                    flags.cacheFreeBytes = 0;
+                } else {
+                    flags.cacheFreeBytes = parseSize(value);
+                    flags.cacheFreeRatio = 0;
+                }
+            } catch (NumberFormatException e) {
+                log.error("Invalid --free value {}", value);
+                return false;
+            }
+        }
+
+        if (i != parts.length - 1 || parts[i].isEmpty()) {
+            log.error("Missing cache directory in {}", cache);
+            return false;
+        }
+        if (!new File(parts[i]).isDirectory()) {
+            log.error("Cache directory {} does not exist", parts[i]);
+            return false;
+        }
+        flags.cacheDir = parts[i];
+        return true;
+    }
+
+    // Parses a number of bytes with an optional K, M or G suffix.
+    private static long parseSize(String value) {
+        if (value.isEmpty()) {
+            throw new NumberFormatException("empty size");
+        }
+        int shift = "KMG".indexOf(Character.toUpperCase(value.charAt(value.length() - 1))) + 1;
+        if (shift != 0) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return Long.parseLong(value) << (10 * shift);
+    }
+
     void cleanup() {
         if (!mountPointCreated.equals("") && !mountPointCreated.equals(mountPointArg)) {
             boolean err = new File(mountPointCreated).delete();
@@ -21,7 +21,6 @@ import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 import javax.annotation.Nonnull;
@@ -105,11 +104,11 @@ class Inode {
     }
 
     int findChildIdxUnlocked(String name) {
-        int l = this.dir.children.length;
+        int l = this.dir.numChildren;
         if (l == 0) {
             return -1;
         }
-        int i = sortSearch(l, this.findInodeFunc(name, true));
+        int i = searchChildUnlocked(name, true);
         if (i < l) {
             // found
             if (this.dir.children[i].name.equals(name)) {
@@ -122,7 +121,7 @@ class Inode {
     long findChildMaxTime() {
         long maxTime = this.attributes.mTime;
 
-        for (int i = 0; i < this.dir.children.length; ++i) {
+        for (int i = 0; i < this.dir.numChildren; ++i) {
             Inode c = this.dir.children[i];
             if (c.attributes.mTime > maxTime) {
                 maxTime = c.attributes.mTime;
@@ -133,11 +132,11 @@ class Inode {
     }
 
     Inode findChildUnlocked(@Nonnull final String name, final boolean isDir) {
-        int l = (this.dir.children != null) ? this.dir.children.length : 0;
+        int l = this.dir.numChildren;
         if (l == 0) {
             return null;
         }
-        int i = sortSearch(l, this.findInodeFunc(name, isDir));
+        int i = searchChildUnlocked(name, isDir);
         if (i < l) {
             // found
             if (this.dir.children[i].name.equals(name)) {
@@ -155,14 +154,13 @@ class Inode {
         return inode;
     }
 
-    Predicate<Integer> findInodeFunc(@Nonnull final String name, final boolean isDir) {
-        // sort dirs first, then by name
-        return i -> {
-            if (this.dir.children[i].isDir() != isDir) {
-                return isDir;
-            }
-            return this.dir.children[i].name.compareTo(name) >= 0;
-        };
+    // sort dirs first, then by name
+    static int compareChild(@Nonnull final Inode child, @Nonnull final String name,
+                            final boolean isDir) {
+        if (child.isDir() != isDir) {
+            return isDir ? 1 : -1;
+        }
+        return child.name.compareTo(name);
     }
 
     String fullName() {
@@ -211,26 +209,25 @@ class Inode {
     }
 
     void insertChildUnlocked(Inode inode) {
-        int l = (this.dir.children != null) ? this.dir.children.length : 0;
-        if (l == 0) {
-            this.dir.children = new Inode[]{inode};
-            return;
+        int l = this.dir.numChildren;
+        if (this.dir.children == null) {
+            this.dir.children = new Inode[4];
+        } else if (l == this.dir.children.length) {
+            this.dir.children = Arrays.copyOf(this.dir.children, l * 2);
         }
 
-        int i = sortSearch(l, this.findInodeFunc(inode.name, inode.isDir()));
-        if (i == l) {
-            // not found = new value is the biggest
-            this.dir.children = Stream.concat(Arrays.stream(this.dir.children), Stream.of(inode))
-                    .toArray(Inode[]::new);
+        // listings come back sorted, so check for an append before searching
+        int i;
+        if (l == 0 || compareChild(this.dir.children[l - 1], inode.name, inode.isDir()) < 0) {
+            i = l;
         } else {
+            i = searchChildUnlocked(inode.name, inode.isDir());
             assert !(this.dir.children[i].name.equals(inode.name));
 
-            this.dir.children = Stream.concat(Arrays.stream(this.dir.children), Stream.of(inode))
-                    .toArray(Inode[]::new);
-            System.arraycopy(this.dir.children, i, this.dir.children, i + 1,
-                             this.dir.children.length - i - 1);
-            this.dir.children[i] = inode;
+            System.arraycopy(this.dir.children, i, this.dir.children, i + 1, l - i);
         }
+        this.dir.children[i] = inode;
+        this.dir.numChildren = l + 1;
     }
 
     void insertSubTree(String path, B2FileVersion obj, Map<Inode, Boolean> dirs) {
@@ -284,7 +281,37 @@ class Inode {
     Inode lookUp(@Nonnull final String name) {
         this.logFuse("Inode.LookUp", name);
 
-        return this.lookUpInodeMaybeDir(name, this.getChildName(name));
+        final String fullName = this.getChildName(name);
+
+        // only one lookup per path goes to B2 at a time, everyone else
+        // arriving in the meantime waits for and shares its result
+        final CompletableFuture<Inode> call = new CompletableFuture<>();
+        final CompletableFuture<Inode> inflight = fs.lookUps.putIfAbsent(fullName, call);
+        if (inflight != null) {
+            this.logFuse("Inode.LookUp in flight", name);
+            try {
+                return inflight.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof NoSuchElementException) {
+                    throw new NoSuchElementException();
+                }
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+
+        try {
+            Inode inode = this.lookUpInodeMaybeDir(name, fullName);
+            call.complete(inode);
+            return inode;
+        } catch (RuntimeException e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            fs.lookUps.remove(fullName, call);
+        }
     }
 
     CompletableFuture<B2ListFilesIterable> lookUpInodeDir(@Nonnull final String name) {
@@ -474,7 +501,7 @@ class Inode {
         if (!B2FuseFilesystem.expired(this.dir.dirTime, this.fs.flags.TypeCacheTtl)) {
             ok = true;
 
-            if (this.dir.children == null || offset >= this.dir.children.length) {
+            if (offset >= this.dir.numChildren) {
                 // return
             } else {
                 Inode child = this.dir.children[(int) offset];
@@ -507,7 +534,7 @@ class Inode {
         if (parent != null && !fs.flags.TypeCacheTtl.isZero()) {
             parent.mu.lock();
 
-            int num = parent.dir.children.length;
+            int num = parent.dir.numChildren;
 
             if (parent.dir.lastOpenDir == null && num > 0
                 && parent.dir.children[0].name.equals(name)) {
@@ -574,16 +601,16 @@ class Inode {
     }
 
     void removeChildUnlocked(Inode inode) {
-        int l = this.dir.children.length;
+        int l = this.dir.numChildren;
         if (l == 0) {
             return;
         }
-        int i = sortSearch(l, this.findInodeFunc(inode.name, inode.isDir()));
+        int i = searchChildUnlocked(inode.name, inode.isDir());
         assert i < l && this.dir.children[i].name.equals(inode.name);
 
-        System.arraycopy(this.dir.children, i + 1, this.dir.children, i, i);
+        System.arraycopy(this.dir.children, i + 1, this.dir.children, i, l - i - 1);
         this.dir.children[l - 1] = null;
-        this.dir.children = Arrays.copyOf(this.dir.children, this.dir.children.length - 2);
+        this.dir.numChildren = l - 1;
     }
 
     static void sealPastDirs(Map<Inode, Boolean> dirs, Inode d) {
@@ -604,6 +631,22 @@ class Inode {
         knownSize = fs.rootAttrs.size;
     }
 
+    // Makes a new empty file called name in this directory and opens it for
+    // writing. The caller inserts it.
+    FileHandle create(@Nonnull final String name) {
+        logFuse("Create", name);
+
+        Inode inode = new Inode(fs, this, name, getChildName(name));
+        inode.attributes = new InodeAttributes();
+        inode.attributes.mTime = Instant.now().getEpochSecond();
+        inode.fileHandles = 1;
+
+        FileHandle fh = new FileHandle(inode);
+        fh.poolHandle = fs.bufferPool;
+        fh.dirty = true;
+        return fh;
+    }
+
     FileHandle openFile() {
         logFuse("OpenFile");
 
@@ -616,13 +659,19 @@ class Inode {
         return fh;
     }
 
-    // TODO(ghart)
-    private int sortSearch(final int n, @Nonnull final Predicate<Integer> f) {
-        for (int i = 0; i < n; ++i) {
-            if (f.test(i)) {
-                return i;
+    // Returns the index of the first child that sorts at or after (name, isDir),
+    // or numChildren if there is none.
+    private int searchChildUnlocked(@Nonnull final String name, final boolean isDir) {
+        int lo = 0;
+        int hi = this.dir.numChildren;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareChild(this.dir.children[mid], name, isDir) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
             }
         }
-        return n;
+        return lo;
     }
 }
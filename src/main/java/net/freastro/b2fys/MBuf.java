@@ -1,11 +1,17 @@
 package net.freastro.b2fys;
 
+import com.backblaze.b2.client.contentSources.B2ContentSource;
+import com.backblaze.b2.util.B2Sha1;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -15,6 +21,11 @@ class MBuf {
 
     private static final Logger log = LogManager.getLogger(MBuf.class);
 
+    static final int TRANSFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> transferBuffer =
+            ThreadLocal.withInitial(() -> new byte[TRANSFER_SIZE]);
+
     BufferPool pool;
     List<ByteBuffer> buffers;
     int rbuf;
@@ -98,7 +109,143 @@ class MBuf {
         return n;
     }
 
+    // Steps the read position back n bytes into data that was already read.
+    // Returns false, without moving, if that's more than was read.
+    boolean rewind(long n) {
+        if (buffers == null) {
+            return false;
+        }
+
+        long consumed = rp;
+        for (int i = 0; i < rbuf; ++i) {
+            consumed += buffers.get(i).limit();
+        }
+        if (n > consumed) {
+            return false;
+        }
+
+        while (n > 0) {
+            if (rp == 0) {
+                rbuf--;
+                rp = buffers.get(rbuf).limit();
+            }
+            int k = (int) Math.min(n, rp);
+            rp -= k;
+            buffers.get(rbuf).position(rp);
+            n -= k;
+        }
+        return true;
+    }
+
+    // Copies as much of p as fits after what was written so far. Returns
+    // the number of bytes copied.
+    int write(ByteBuffer p) {
+        int n = 0;
+        if (buffers == null) {
+            return n;
+        }
+
+        while (p.hasRemaining()) {
+            ByteBuffer b = buffers.get(wbuf);
+            if (wp == b.capacity()) {
+                if (wbuf + 1 == buffers.size()) {
+                    break;
+                }
+                wbuf++;
+                wp = 0;
+                continue;
+            }
+
+            ByteBuffer dst = b.duplicate();
+            dst.clear().position(wp);
+            int k = Math.min(dst.remaining(), p.remaining());
+            ByteBuffer src = p.duplicate();
+            src.limit(src.position() + k);
+            dst.put(src);
+            p.position(p.position() + k);
+            wp += k;
+            n += k;
+        }
+
+        return n;
+    }
+
+    // true if there's no room left for write()
+    boolean full() {
+        return buffers == null
+               || (wbuf == buffers.size() - 1 && wp == buffers.get(wbuf).capacity());
+    }
+
+    // number of bytes written
+    long size() {
+        long size = 0;
+        if (buffers != null) {
+            for (int i = 0; i < wbuf; ++i) {
+                size += buffers.get(i).capacity();
+            }
+            size += wp;
+        }
+        return size;
+    }
+
+    // What was written, for uploading. Each stream it creates reads the data
+    // from the start, so the upload can be retried.
+    B2ContentSource contentSource() {
+        final long length = size();
+        final String sha1 = sha1();
+        return new B2ContentSource() {
+            @Override
+            public long getContentLength() {
+                return length;
+            }
+
+            @Override
+            public String getSha1OrNull() {
+                return sha1;
+            }
+
+            @Override
+            public Long getSrcLastModifiedMillisOrNull() {
+                return null;
+            }
+
+            @Override
+            public InputStream createInputStream() {
+                return new BuffersInputStream(written());
+            }
+        };
+    }
+
+    // hex SHA1 of what was written
+    String sha1() {
+        MessageDigest digest = B2Sha1.createSha1MessageDigest();
+        for (ByteBuffer b : written()) {
+            digest.update(b);
+        }
+        StringBuilder hex = new StringBuilder(B2Sha1.HEX_SHA1_SIZE);
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    // views of the written part of each buffer
+    private List<ByteBuffer> written() {
+        List<ByteBuffer> written = new ArrayList<>();
+        if (buffers != null) {
+            for (int i = 0; i <= wbuf; ++i) {
+                ByteBuffer b = buffers.get(i).duplicate();
+                b.clear().limit((i == wbuf) ? wp : b.capacity());
+                written.add(b);
+            }
+        }
+        return written;
+    }
+
     void free() {
+        if (buffers == null) {
+            return;
+        }
         for (ByteBuffer b : buffers) {
             pool.free(b);
         }
@@ -106,14 +253,65 @@ class MBuf {
         buffers = null;
     }
 
+    private static class BuffersInputStream extends InputStream {
+
+        List<ByteBuffer> buffers;
+        int cur;
+
+        BuffersInputStream(List<ByteBuffer> buffers) {
+            this.buffers = buffers;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            while (cur < buffers.size() && !buffers.get(cur).hasRemaining()) {
+                cur++;
+            }
+            if (cur == buffers.size()) {
+                return -1;
+            }
+            ByteBuffer src = buffers.get(cur);
+            int n = Math.min(len, src.remaining());
+            src.get(b, off, n);
+            return n;
+        }
+    }
+
+    // Reads from src until dst is full or src hits EOF.
+    //
+    // Channels (B2Stream) fill dst themselves; heap buffers are read into
+    // their backing array in place. Only a plain stream feeding a direct
+    // buffer goes through a transfer array, and that one is reused per
+    // thread instead of being allocated on every call.
     static int read(ByteBuffer dst, InputStream src, AtomicInteger err) {
-        byte[] buf = new byte[4096];
+        ReadableByteChannel ch = (src instanceof ReadableByteChannel)
+                                 ? (ReadableByteChannel) src : null;
         int n = 0;
         int size;
 
         while (dst.remaining() > 0) {
             try {
-                size = src.read(buf, 0, Math.min(dst.remaining(), buf.length));
+                if (ch != null) {
+                    size = ch.read(dst);
+                } else if (dst.hasArray()) {
+                    size = src.read(dst.array(), dst.arrayOffset() + dst.position(),
+                                    dst.remaining());
+                    if (size > 0) {
+                        dst.position(dst.position() + size);
+                    }
+                } else {
+                    byte[] buf = transferBuffer.get();
+                    size = src.read(buf, 0, Math.min(dst.remaining(), buf.length));
+                    if (size > 0) {
+                        dst.put(buf, 0, size);
+                    }
+                }
             } catch (IOException e) {
                 log.error(e);
                 err.set(Errno.EIO.intValue());
@@ -125,7 +323,6 @@ class MBuf {
                 return n;
             }
 
-            dst.put(buf, 0, size);
             n += size;
         }
 
@@ -0,0 +1,381 @@
+package net.freastro.b2fys;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnull;
+
+import static net.freastro.b2fys.syscall.DT_Directory;
+import static net.freastro.b2fys.syscall.DT_File;
+
+// On-disk copy of the inode tree, so that a remount can answer stat and
+// readdir without listing the bucket again (--metadata-snapshot).
+//
+// The file is
+//
+//     MAGIC VERSION bucket prefix
+//     a record per directory: path, dirTime, then name, type, size, mtime,
+//         attrTime and sha1 of each child
+//     index: number of records, then path and offset of each
+//     offset of the index
+//
+// Only the index is read at mount. A directory's record is read and its
+// children inserted the first time something looks into the directory
+// (restore), so a snapshot of a huge bucket mounts quickly and only the
+// parts that are used take memory. Restored entries keep the times they
+// were listed or looked up at, so --stat-cache-ttl and --type-cache-ttl
+// decide as usual when they are fetched from B2 again.
+// A snapshot taken of another bucket or prefix is ignored.
+//
+// save() writes a new file next to the old one and renames it into place.
+// Directories that were never restored are copied over from the old file.
+class MetadataSnapshot {
+
+    private static final Logger log = LogManager.getLogger(MetadataSnapshot.class);
+
+    static final int MAGIC = 0x62326d64; // "b2md"
+    static final int VERSION = 2;
+
+    static class Entry {
+
+        String name;
+        boolean isDir;
+        long size;
+        long mTime;
+        long attrTime; // epoch millis
+        String eTag;   // "" if unknown
+    }
+
+    static class Record {
+
+        String path;
+        long dirTime; // epoch millis, 0 if the directory was never listed
+        List<Entry> children = new ArrayList<>();
+    }
+
+    Path file;
+    B2FuseFilesystem fs;
+
+    // the snapshot loaded at mount, read with positional reads so it needs
+    // no lock; null if there was none
+    FileChannel channel;
+    // directories in channel that haven't been restored yet -> offset of their record
+    Map<String, Long> pending = new ConcurrentHashMap<>();
+
+    ReentrantLock saveMu = new ReentrantLock();
+
+    MetadataSnapshot(@Nonnull B2FuseFilesystem fs, @Nonnull Path file) {
+        this.fs = fs;
+        this.file = file;
+    }
+
+    // Reads the index of the snapshot in file, if there is one. A snapshot
+    // that can't be read is ignored and replaced by the next save.
+    MetadataSnapshot load() {
+        if (!Files.exists(file)) {
+            return this;
+        }
+
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+
+            DataInputStream in = open(0);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a metadata snapshot");
+            }
+            String bucket = in.readUTF();
+            String prefix = in.readUTF();
+            if (!bucket.equals(fs.bucket.getBucketName()) || !prefix.equals(fs.prefix)) {
+                throw new IOException("snapshot of " + bucket + ":" + prefix);
+            }
+
+            ByteBuffer trailer = ByteBuffer.allocate(Long.BYTES);
+            channel.read(trailer, channel.size() - Long.BYTES);
+            trailer.flip();
+            in = open(trailer.getLong());
+
+            int n = in.readInt();
+            for (int i = 0; i < n; ++i) {
+                pending.put(in.readUTF(), in.readLong());
+            }
+        } catch (IOException e) {
+            log.warn("Ignoring metadata snapshot {}: {}", file, e.toString());
+            pending.clear();
+            close();
+            return this;
+        }
+
+        log.info("Loaded metadata snapshot {} with {} directories", file, pending.size());
+        return this;
+    }
+
+    // Inserts the children dir had when the snapshot was taken, unless that
+    // has been done already.
+    void restore(@Nonnull Inode dir) {
+        if (pending.isEmpty() || !dir.isDir()) {
+            return;
+        }
+        Long offset = pending.remove(dir.fullName());
+        if (offset == null) {
+            return;
+        }
+
+        Record r;
+        try {
+            r = readRecord(open(offset));
+        } catch (IOException e) {
+            log.warn("Reading {} from metadata snapshot: {}", dir.fullName(), e.toString());
+            return;
+        }
+
+        for (Entry e : r.children) {
+            dir.mu.lock();
+            boolean exists = dir.findChildUnlocked(e.name, e.isDir) != null;
+            dir.mu.unlock();
+            if (exists) {
+                // we already know better
+                continue;
+            }
+
+            DirHandleEntry en = new DirHandleEntry();
+            en.name = e.name;
+            if (e.isDir) {
+                en.type = DT_Directory;
+                en.attributes = fs.rootAttrs;
+            } else {
+                en.type = DT_File;
+                en.attributes = new InodeAttributes();
+                en.attributes.size = e.size;
+                en.attributes.mTime = e.mTime;
+            }
+            if (!e.eTag.isEmpty()) {
+                en.eTag = e.eTag;
+            }
+
+            Inode inode = fs.insertInodeFromDirEntry(dir, en);
+            inode.knownSize = e.size;
+            inode.attrTime = Instant.ofEpochMilli(e.attrTime);
+        }
+
+        dir.mu.lock();
+        if (r.dirTime != 0 && dir.dir.dirTime.equals(Instant.MIN)) {
+            dir.dir.dirTime = Instant.ofEpochMilli(r.dirTime);
+        }
+        dir.mu.unlock();
+    }
+
+    // Writes the inode tree under root to file.
+    void save(@Nonnull Inode root) throws IOException {
+        saveMu.lock();
+        try {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            // what we don't have in memory comes from the old snapshot
+            Map<String, Long> carry = new HashMap<>(pending);
+            Map<String, Long> index = new LinkedHashMap<>();
+            int dirs = 0;
+
+            try (FileOutputStream fos = new FileOutputStream(tmp.toFile())) {
+                CountingOutputStream counter =
+                        new CountingOutputStream(new BufferedOutputStream(fos));
+                DataOutputStream out = new DataOutputStream(counter);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(fs.bucket.getBucketName());
+                out.writeUTF(fs.prefix);
+
+                Deque<Inode> todo = new ArrayDeque<>();
+                todo.push(root);
+                while (!todo.isEmpty()) {
+                    Inode dir = todo.pop();
+                    Record r = snapshot(dir, todo);
+                    if (carry.containsKey(r.path)
+                        || (r.dirTime == 0 && r.children.isEmpty())) {
+                        // copied below, or nothing worth keeping
+                        continue;
+                    }
+                    index.put(r.path, counter.count);
+                    writeRecord(out, r);
+                    dirs++;
+                }
+
+                for (Map.Entry<String, Long> e : carry.entrySet()) {
+                    Record r = readRecord(open(e.getValue()));
+                    index.put(r.path, counter.count);
+                    writeRecord(out, r);
+                }
+
+                long indexOffset = counter.count;
+                out.writeInt(index.size());
+                for (Map.Entry<String, Long> e : index.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue());
+                }
+                out.writeLong(indexOffset);
+                out.flush();
+                fos.getChannel().force(true);
+            }
+
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+            log.debug("Saved metadata snapshot {} with {} directories, {} unchanged", file,
+                      dirs, carry.size());
+        } finally {
+            saveMu.unlock();
+        }
+    }
+
+    void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing to lose
+            }
+            channel = null;
+        }
+    }
+
+    // Copies what we know about dir, queueing its subdirectories on todo.
+    private Record snapshot(Inode dir, Deque<Inode> todo) {
+        Record r = new Record();
+        r.path = dir.fullName();
+
+        dir.mu.lock();
+        try {
+            if (!dir.dir.dirTime.equals(Instant.MIN)) {
+                r.dirTime = dir.dir.dirTime.toEpochMilli();
+            }
+            for (int i = 0; i < dir.dir.numChildren; ++i) {
+                Inode c = dir.dir.children[i];
+                if (c.invalid) {
+                    continue;
+                }
+
+                Entry e = new Entry();
+                e.name = c.name;
+                e.isDir = c.isDir();
+                e.size = c.attributes.size;
+                e.mTime = c.attributes.mTime;
+                e.attrTime = c.attrTime.toEpochMilli();
+                ByteBuffer etag = c.s3Metadata.get("etag");
+                e.eTag = (etag != null) ? new String(etag.array(), StandardCharsets.UTF_8) : "";
+                r.children.add(e);
+
+                if (e.isDir && !e.name.equals(".") && !e.name.equals("..")) {
+                    todo.push(c);
+                }
+            }
+        } finally {
+            dir.mu.unlock();
+        }
+        return r;
+    }
+
+    private static Record readRecord(DataInputStream in) throws IOException {
+        Record r = new Record();
+        r.path = in.readUTF();
+        r.dirTime = in.readLong();
+        int n = in.readInt();
+        for (int i = 0; i < n; ++i) {
+            Entry e = new Entry();
+            e.name = in.readUTF();
+            e.isDir = in.readBoolean();
+            e.size = in.readLong();
+            e.mTime = in.readLong();
+            e.attrTime = in.readLong();
+            e.eTag = in.readUTF();
+            r.children.add(e);
+        }
+        return r;
+    }
+
+    private static void writeRecord(DataOutputStream out, Record r) throws IOException {
+        out.writeUTF(r.path);
+        out.writeLong(r.dirTime);
+        out.writeInt(r.children.size());
+        for (Entry e : r.children) {
+            out.writeUTF(e.name);
+            out.writeBoolean(e.isDir);
+            out.writeLong(e.size);
+            out.writeLong(e.mTime);
+            out.writeLong(e.attrTime);
+            out.writeUTF(e.eTag);
+        }
+    }
+
+    // a stream over channel starting at offset
+    private DataInputStream open(long offset) throws IOException {
+        final FileChannel ch = channel;
+        if (ch == null) {
+            throw new IOException("no snapshot loaded");
+        }
+
+        return new DataInputStream(new BufferedInputStream(new InputStream() {
+            long pos = offset;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = ch.read(ByteBuffer.wrap(b, off, len), pos);
+                if (n > 0) {
+                    pos += n;
+                }
+                return n;
+            }
+        }));
+    }
+
+    // knows the offset of what's written next
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
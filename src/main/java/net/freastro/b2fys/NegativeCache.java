@@ -0,0 +1,83 @@
+package net.freastro.b2fys;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+
+// Remembers paths that B2 recently told us don't exist, so that repeated
+// lookups of the same missing name (shells, import machinery probing for
+// variants, etc) don't cost another round of list calls.
+//
+// Entries expire after ttl and are dropped whenever the directory holding
+// them is listed again. The number of entries is capped at max; when full,
+// expired entries are purged first and then arbitrary ones.
+class NegativeCache {
+
+    static final int MAX_ENTRIES = 10000;
+
+    Duration ttl;
+    int max;
+
+    // full name -> time the entry expires
+    Map<String, Instant> entries = new ConcurrentHashMap<>();
+
+    NegativeCache(@Nonnull final Duration ttl, final int max) {
+        this.ttl = ttl;
+        this.max = max;
+    }
+
+    void add(@Nonnull final String fullName) {
+        if (ttl.isZero() || max <= 0) {
+            return;
+        }
+
+        if (entries.size() >= max) {
+            evict();
+        }
+        entries.put(fullName, Instant.now().plus(ttl));
+    }
+
+    boolean contains(@Nonnull final String fullName) {
+        Instant expires = entries.get(fullName);
+        if (expires == null) {
+            return false;
+        }
+        if (!expires.isAfter(Instant.now())) {
+            entries.remove(fullName, expires);
+            return false;
+        }
+        return true;
+    }
+
+    void remove(@Nonnull final String fullName) {
+        entries.remove(fullName);
+    }
+
+    // drop everything under dir, which has just been listed from B2
+    void invalidateDir(@Nonnull final String dir) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        if (dir.length() == 0) {
+            entries.clear();
+        } else {
+            String prefix = dir + "/";
+            entries.keySet().removeIf(k -> k.startsWith(prefix));
+        }
+    }
+
+    private void evict() {
+        Instant now = Instant.now();
+        entries.values().removeIf(expires -> !expires.isAfter(now));
+
+        Iterator<String> it = entries.keySet().iterator();
+        while (entries.size() >= max && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package net.freastro.b2fys;
+
+import com.backblaze.b2.client.B2ListFilesIterable;
+import com.backblaze.b2.client.structures.B2FileVersion;
+import com.backblaze.b2.client.structures.B2ListFileNamesRequest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+
+// Lists a prefix as several key ranges fetched concurrently, for bulk
+// metadata prefetch (--prefetch-metadata) and for directories too large to
+// list one page after another.
+//
+// B2 can only list forward from a start name, so the key space is cut at
+// boundary names: range i covers [boundaries[i], boundaries[i+1]), with
+// the first range starting at the prefix itself (or where the listing is
+// at) and the last one running to the end of it. Each range is listed
+// page by page from its start and stops once it reaches the next
+// boundary, so the ranges together see every name exactly once whatever
+// the boundaries are; good boundaries only make them more even.
+class RangeLister {
+
+    // where to cut when nothing better is known: spread over the characters
+    // names usually continue with after the prefix
+    static final String SPLIT_CHARS = "048CGKOSWaeimquy";
+
+    private static final String DIGITS = "0123456789";
+    private static final String LOWER = "abcdefghijklmnopqrstuvwxyz";
+    private static final String UPPER = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    // most ranges a single listing is split into
+    static final int MAX_RANGES = 16;
+
+    B2FuseFilesystem fs;
+    Executor executor;
+
+    RangeLister(@Nonnull B2FuseFilesystem fs, @Nonnull Executor executor) {
+        this.fs = fs;
+        this.executor = executor;
+    }
+
+    // Cuts after keyPrefix at SPLIT_CHARS.
+    static List<String> defaultBoundaries(@Nonnull String keyPrefix) {
+        List<String> boundaries = new ArrayList<>(SPLIT_CHARS.length());
+        for (char c : SPLIT_CHARS.toCharArray()) {
+            boundaries.add(keyPrefix + c);
+        }
+        return boundaries;
+    }
+
+    // Lists keyPrefix in the ranges cut by boundaries, which must be sorted
+    // and start with keyPrefix. sink is called from several threads at once,
+    // but with the names of each range in order.
+    CompletableFuture<Void> list(@Nonnull String keyPrefix, @Nonnull List<String> boundaries,
+                                 @Nonnull Consumer<B2FileVersion> sink) {
+        List<CompletableFuture<Void>> ranges = new ArrayList<>(boundaries.size() + 1);
+        for (int i = 0; i <= boundaries.size(); ++i) {
+            String start = (i == 0) ? null : boundaries.get(i - 1);
+            String end = (i == boundaries.size()) ? null : boundaries.get(i);
+            ranges.add(CompletableFuture.runAsync(
+                    () -> listRange(keyPrefix, null, start, end, sink), executor));
+        }
+        return CompletableFuture.allOf(ranges.toArray(new CompletableFuture<?>[0]));
+    }
+
+    // Lists names under keyPrefix from start (inclusive, or the beginning)
+    // to end (exclusive, or the end).
+    void listRange(String keyPrefix, String delimiter, String start, String end,
+                   Consumer<B2FileVersion> sink) {
+        B2ListFileNamesRequest params = B2ListFileNamesRequest
+                .builder(fs.bucket.getBucketId()).setPrefix(keyPrefix).setDelimiter(delimiter)
+                .setStartFileName(start).setMaxFileCount(DirHandle.LIST_PAGE_SIZE).build();
+
+        B2ListFilesIterable resp;
+        try {
+            resp = fs.b2.fileNames(params);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        // the iterable fetches the following pages as we go
+        for (B2FileVersion obj : resp) {
+            if (end != null && obj.getFileName().compareTo(end) >= 0) {
+                break;
+            }
+            sink.accept(obj);
+        }
+    }
+
+    // Picks up to MAX_RANGES - 1 names to cut the rest of a listing of
+    // keyPrefix at, given the names of its first page. Names known to exist,
+    // say from an earlier listing, are the best guide, so if there are enough
+    // of them past the page the cuts are spread evenly over those.
+    //
+    // Otherwise the cuts are guessed from the last name on the page: names
+    // after it likely differ from it where names on the page differ from each
+    // other, or just before. So going from there towards the start of the
+    // name, each position is cut at the characters following the one there
+    // that are of the same kind (digit, letter, ...). Cuts stay within the
+    // first path component, so that a delimited listing never returns the
+    // same folder from two ranges.
+    static List<String> sampleBoundaries(@Nonnull String keyPrefix, @Nonnull List<String> page,
+                                         @Nonnull Collection<String> known) {
+        List<String> boundaries = new ArrayList<>();
+        if (page.isEmpty()) {
+            return boundaries;
+        }
+        String last = page.get(page.size() - 1);
+
+        List<String> ahead = new ArrayList<>();
+        for (String name : known) {
+            if (name.compareTo(last) > 0) {
+                ahead.add(name);
+            }
+        }
+        if (ahead.size() >= MAX_RANGES) {
+            Collections.sort(ahead);
+            for (int i = 1; i < MAX_RANGES; ++i) {
+                String b = ahead.get(i * ahead.size() / MAX_RANGES);
+                if (boundaries.isEmpty() || !boundaries.get(boundaries.size() - 1).equals(b)) {
+                    boundaries.add(b);
+                }
+            }
+            return boundaries;
+        }
+
+        String first = page.get(0);
+        int common = 0;
+        while (common < Math.min(first.length(), last.length())
+               && first.charAt(common) == last.charAt(common)) {
+            common++;
+        }
+        int slash = last.indexOf('/', keyPrefix.length());
+        int end = (slash == -1) ? last.length() : slash;
+
+        for (int j = Math.min(common, end - 1); j >= keyPrefix.length(); --j) {
+            char c = last.charAt(j);
+            for (char next : charClass(c).toCharArray()) {
+                if (next <= c) {
+                    continue;
+                }
+                if (boundaries.size() == MAX_RANGES - 1) {
+                    return boundaries;
+                }
+                boundaries.add(last.substring(0, j) + next);
+            }
+        }
+        return boundaries;
+    }
+
+    private static String charClass(char c) {
+        if (c >= '0' && c <= '9') {
+            return DIGITS;
+        } else if (c >= 'a' && c <= 'z') {
+            return LOWER;
+        } else if (c >= 'A' && c <= 'Z') {
+            return UPPER;
+        } else {
+            return SPLIT_CHARS;
+        }
+    }
+}
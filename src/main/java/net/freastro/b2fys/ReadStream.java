@@ -0,0 +1,527 @@
+package net.freastro.b2fys;
+
+import com.backblaze.b2.client.exceptions.B2Exception;
+import com.backblaze.b2.client.structures.B2DownloadByNameRequest;
+import com.backblaze.b2.util.B2ByteRange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jnr.constants.platform.Errno;
+
+// One sequential reader within a file handle.
+//
+// Columnar formats and databases don't read a file front to back: they read
+// a footer, then a few column chunks or pages, often interleaved. Each of
+// those runs is a ReadStream with its own position, serial reader and
+// readahead window, so that a read elsewhere in the file doesn't throw away
+// the readahead of the others. See FileHandle.findStream.
+//
+// LOCKS_REQUIRED(fh.mu) for everything.
+class ReadStream {
+
+    private static final int SKIP_BUFFER_SIZE = 64 * 1024;
+    static final int HISTORY_SIZE = 128 * 1024;
+
+    FileHandle fh;
+
+    // read
+    InputStream reader;
+    long readBufOffset;
+    int lastReadSize;
+
+    // parallel read
+    List<S3ReadBuffer> buffers = new ArrayList<>();
+    int existingReadahead;
+    long seqReadAmount;
+    // How far ahead of the reader we fetch. Starts at --readahead-min once
+    // the stream has proven sequential, grows by a chunk every time one is
+    // consumed in order (so roughly doubles per window read) up to
+    // --readahead-max, and halves whenever readahead is skipped over unread.
+    long readAheadWindow;
+
+    // Data already returned, kept so that seeking back a little (tar, unzip,
+    // demuxers) doesn't cost a new request. In readahead mode that's the
+    // last buffer read to the end, plus what was read of the current one;
+    // serial reads keep a copy of their last HISTORY_SIZE bytes.
+    S3ReadBuffer behind;
+    byte[] history;
+    int historyLen;
+
+    // Block being collected from sequential reads for the block and disk
+    // caches, and the block to collect into next when there is no block cache.
+    ByteBuffer pending;
+    long pendingIndex;
+    ByteBuffer spare;
+
+    // FileHandle.numReads as of the last read, for evicting the least recently used stream
+    long lastUsed;
+
+    ReadStream(FileHandle fh, long offset) {
+        this.fh = fh;
+        this.readBufOffset = offset;
+    }
+
+    // bytes from readBufOffset on that are already buffered or being fetched
+    long bufferedAhead() {
+        long n = 0;
+        for (S3ReadBuffer b : buffers) {
+            n += b.size;
+        }
+        return n;
+    }
+
+    // bytes before readBufOffset that can still be read again
+    long rewindable() {
+        if (buffers.isEmpty() && behind == null) {
+            return historyLen;
+        }
+
+        long n = 0;
+        long start = readBufOffset;
+        if (!buffers.isEmpty()) {
+            S3ReadBuffer head = buffers.get(0);
+            n += head.offset - head.start;
+            start = head.start;
+        }
+        if (behind != null && behind.offset == start) {
+            n += behind.offset - behind.start;
+        }
+        return n;
+    }
+
+    int read(long offset, ByteBuffer buf, AtomicInteger err) {
+        int bytesRead = 0;
+        Inode inode = fh.inode;
+        B2FuseFilesystem fs = inode.fs;
+
+        if (offset < readBufOffset) {
+            inode.logFuse("seek back", offset, readBufOffset);
+            if (buffers.isEmpty() && behind == null) {
+                return readFromHistory(offset, buf);
+            }
+            if (!rewind(readBufOffset - offset)) {
+                // the data went away under us, start over from here
+                close();
+                readBufOffset = offset;
+                seqReadAmount = 0;
+            }
+        }
+
+        lastReadSize = buf.remaining();
+
+        if (!fs.flags.cheap && seqReadAmount >= fh.minReadAhead()) {
+            if (reader != null) {
+                inode.logFuse("cutover to the parallel algorithm");
+                closeReader();
+                historyLen = 0;
+            }
+
+            readAhead(offset, buf.remaining(), err);
+            if (err.get() == 0) {
+                bytesRead = readFromReadAhead(offset, buf, err);
+            } else {
+                // fall back to read serially
+                inode.logFuse("not enough memory, fallback to serial read");
+                seqReadAmount = 0;
+                closeBuffers();
+
+                err.set(0);
+                bytesRead = readFromStream(offset, buf, err);
+            }
+        } else {
+            bytesRead = readFromStream(offset, buf, err);
+            if (bytesRead > 0) {
+                remember(buf, bytesRead);
+            }
+        }
+
+        if (bytesRead > 0) {
+            fill(offset, buf, bytesRead);
+            readBufOffset += bytesRead;
+            seqReadAmount += bytesRead;
+        }
+
+        return bytesRead;
+    }
+
+    // Copies n bytes just read at offset, ending at buf's position, into the
+    // block being collected for the block and disk caches. Only whole blocks
+    // read in order are cached; the last block of the file may be short.
+    void fill(long offset, ByteBuffer buf, int n) {
+        BlockCache cache = fh.inode.fs.blockCache;
+        DiskCache disk = fh.inode.fs.diskCache;
+        if (cache == null && disk == null) {
+            return;
+        }
+
+        if (pending != null
+            && offset != pendingIndex * BlockCache.BLOCK_SIZE + pending.position()) {
+            // not a continuation of what we've collected so far
+            recycle(pending);
+            pending = null;
+        }
+
+        long size = fh.inode.attributes.size;
+        ByteBuffer src = buf.duplicate();
+        src.limit(buf.position());
+        src.position(buf.position() - n);
+
+        while (src.hasRemaining()) {
+            if (pending == null) {
+                // start collecting at the next block boundary
+                int skip = (int) ((BlockCache.BLOCK_SIZE - offset % BlockCache.BLOCK_SIZE)
+                                  % BlockCache.BLOCK_SIZE);
+                if (skip >= src.remaining()) {
+                    return;
+                }
+                src.position(src.position() + skip);
+                offset += skip;
+
+                pending = allocate();
+                if (pending == null) {
+                    return;
+                }
+                pendingIndex = offset / BlockCache.BLOCK_SIZE;
+            }
+
+            int k = Math.min(src.remaining(), pending.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + k);
+            pending.put(part);
+            src.position(src.position() + k);
+            offset += k;
+
+            if (!pending.hasRemaining() || offset >= size) {
+                pending.flip();
+                if (disk != null && (fh.diskBlocks == null
+                                     || !fh.diskBlocks.get((int) pendingIndex))) {
+                    disk.store(fh.cacheKey(), pendingIndex, pending);
+                    if (fh.diskBlocks != null) {
+                        fh.diskBlocks.set((int) pendingIndex);
+                    }
+                }
+                if (cache != null) {
+                    cache.put(fh.cacheKey(), pendingIndex, pending);
+                } else {
+                    recycle(pending);
+                }
+                pending = null;
+            }
+        }
+    }
+
+    // A block to collect data into: from the block cache if there is one,
+    // otherwise from the buffer pool and reused by this stream while it only
+    // feeds the disk cache. null if there is no memory to spare, and the
+    // data isn't cached.
+    private ByteBuffer allocate() {
+        BlockCache cache = fh.inode.fs.blockCache;
+        if (cache != null) {
+            return cache.allocate();
+        }
+        ByteBuffer block = spare;
+        spare = null;
+        if (block != null) {
+            return block;
+        }
+        List<ByteBuffer> buffers =
+                fh.inode.fs.bufferPool.requestMultiple(BlockCache.BLOCK_SIZE, false);
+        return buffers.isEmpty() ? null : buffers.get(0);
+    }
+
+    private void recycle(ByteBuffer block) {
+        BlockCache cache = fh.inode.fs.blockCache;
+        if (cache != null) {
+            cache.recycle(block);
+        } else {
+            block.clear();
+            spare = block;
+        }
+    }
+
+    // Moves the stream back n bytes into readahead data already read.
+    boolean rewind(long n) {
+        if (n > rewindable()) {
+            return false;
+        }
+
+        if (!buffers.isEmpty()) {
+            S3ReadBuffer head = buffers.get(0);
+            long k = Math.min(n, head.offset - head.start);
+            if (k > 0) {
+                if (!head.rewind(k)) {
+                    return false;
+                }
+                readBufOffset -= k;
+                n -= k;
+            }
+        }
+
+        if (n > 0) {
+            if (!behind.rewind(n)) {
+                return false;
+            }
+            readBufOffset -= n;
+            buffers.add(0, behind);
+            behind = null;
+        }
+        return true;
+    }
+
+    // Serves a read before readBufOffset from the copy of the last serial
+    // reads. The stream itself stays where it is.
+    int readFromHistory(long offset, ByteBuffer buf) {
+        int from = (int) (historyLen - (readBufOffset - offset));
+        int n = Math.min(historyLen - from, buf.remaining());
+        buf.put(history, from, n);
+        return n;
+    }
+
+    // Keeps the last n bytes put into buf by a serial read.
+    void remember(ByteBuffer buf, int n) {
+        if (history == null) {
+            history = new byte[HISTORY_SIZE];
+        }
+
+        int keep = Math.min(n, HISTORY_SIZE);
+        int old = Math.min(historyLen, HISTORY_SIZE - keep);
+        System.arraycopy(history, historyLen - old, history, 0, old);
+
+        ByteBuffer src = buf.duplicate();
+        src.limit(buf.position());
+        src.position(buf.position() - keep);
+        src.get(history, old, keep);
+        historyLen = old + keep;
+    }
+
+    // Moves the stream n bytes forward without returning the data in between.
+    void skip(long n) {
+        // a ranged serial reader only covers the previous read, start a new one
+        closeReader();
+        historyLen = 0;
+        if (behind != null) {
+            behind.buf.close(new AtomicInteger());
+            behind = null;
+        }
+
+        if (n >= bufferedAhead()) {
+            // all of the readahead is wasted
+            if (!buffers.isEmpty()) {
+                closeBuffers();
+                shrinkReadAhead();
+            }
+        } else {
+            AtomicInteger err = new AtomicInteger();
+            ByteBuffer scratch = ByteBuffer.allocate((int) Math.min(n, SKIP_BUFFER_SIZE));
+            long skipped = 0;
+            while (skipped < n && err.get() == 0) {
+                S3ReadBuffer b = buffers.get(0);
+                if (b.size <= n - skipped) {
+                    // drop whole buffers we'd skip over
+                    skipped += b.size;
+                    b.buf.close(new AtomicInteger());
+                    buffers.remove(0);
+                    continue;
+                }
+
+                scratch.clear();
+                scratch.limit((int) Math.min(n - skipped, scratch.capacity()));
+                skipped += b.read(readBufOffset + skipped, scratch, err);
+            }
+
+            if (err.get() != 0) {
+                closeBuffers();
+            }
+        }
+
+        readBufOffset += n;
+    }
+
+    void close() {
+        closeBuffers();
+        closeReader();
+        if (pending != null) {
+            recycle(pending);
+            pending = null;
+        }
+        if (spare != null) {
+            fh.inode.fs.bufferPool.free(spare);
+            spare = null;
+        }
+    }
+
+    void closeBuffers() {
+        for (S3ReadBuffer b : buffers) {
+            b.buf.close(new AtomicInteger());
+        }
+        buffers.clear();
+        if (behind != null) {
+            behind.buf.close(new AtomicInteger());
+            behind = null;
+        }
+    }
+
+    void closeReader() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // ignored
+            }
+            reader = null;
+        }
+    }
+
+    int readAheadChunk() {
+        return (int) Math.min(FileHandle.READAHEAD_CHUNK, readAheadWindow);
+    }
+
+    void growReadAhead() {
+        readAheadWindow = Math.min(readAheadWindow + readAheadChunk(), fh.maxReadAhead());
+    }
+
+    void shrinkReadAhead() {
+        readAheadWindow = Math.max(readAheadWindow / 2, fh.minReadAhead());
+    }
+
+    int readFromReadAhead(long offset, ByteBuffer buf, AtomicInteger err) {
+        int bytesRead = 0;
+
+        int nread = 0;
+        while (buffers.size() != 0) {
+            nread = buffers.get(0).read(offset + bytesRead, buf, err);
+            bytesRead += nread;
+            if (err.get() != 0) {
+                return bytesRead;
+            }
+
+            if (buffers.get(0).size == 0) {
+                // we've exhausted the first buffer, hold on to it in case
+                // the reader seeks back
+                if (behind != null) {
+                    behind.buf.close(new AtomicInteger());
+                }
+                behind = buffers.remove(0);
+                growReadAhead();
+            }
+
+            if (buf.remaining() == 0) {
+                // we've filled the user buffer
+                return bytesRead;
+            }
+        }
+
+        return bytesRead;
+    }
+
+    void readAhead(long offset, int needAtLeast, AtomicInteger err) {
+        Inode inode = fh.inode;
+
+        existingReadahead = (int) bufferedAhead();
+
+        if (readAheadWindow == 0) {
+            readAheadWindow = fh.minReadAhead();
+        }
+        int chunk = readAheadChunk();
+
+        // don't ask for more than the buffer pool could give us right now
+        long readAheadAmount = Math.min(readAheadWindow,
+                                        existingReadahead + fh.poolHandle.available());
+
+        while (readAheadAmount - existingReadahead >= chunk) {
+            long off = offset + existingReadahead;
+            long remaining = inode.attributes.size - off;
+
+            // only read up to readahead chunk each time
+            int size = (int) Math.min(readAheadAmount - existingReadahead, chunk);
+            // but don't read past the file
+            size = (int) Math.min(size, remaining);
+
+            if (size != 0) {
+                inode.logFuse("readahead", off, size, existingReadahead);
+
+                S3ReadBuffer readAheadBuf = S3ReadBuffer.init(fh, off, size);
+                if (readAheadBuf != null) {
+                    buffers.add(readAheadBuf);
+                    existingReadahead += size;
+                } else {
+                    if (existingReadahead != 0) {
+                        // don't do more readahead now, but don't fail, cross our
+                        // fingers that we will be able to allocate the buffers
+                        // later
+                        err.set(0);
+                        return;
+                    } else {
+                        err.set(-Errno.ENOMEM.intValue());
+                    }
+                }
+            }
+
+            if (size != chunk) {
+                // that was the last remaining chunk to readahead
+                break;
+            }
+        }
+
+        if (existingReadahead == 0 && err.get() == 0) {
+            // the pool is too short on memory for even one chunk
+            err.set(-Errno.ENOMEM.intValue());
+        }
+    }
+
+    int readFromStream(long offset, ByteBuffer buf, AtomicInteger err) {
+        int bytesRead = 0;
+        Inode inode = fh.inode;
+
+        if (offset >= inode.attributes.size) {
+            // nothing to read
+            if (inode.fs.flags.debugFuse) {
+                inode.logFuse("< readFromStream", bytesRead);
+            }
+            return bytesRead;
+        }
+
+        B2FuseFilesystem fs = inode.fs;
+
+        if (reader == null) {
+            String fileName = fs.key(inode.fullName());
+            B2DownloadByNameRequest.Builder params = B2DownloadByNameRequest
+                    .builder(fs.bucket.getBucketName(), fileName);
+
+            if (offset != 0) {
+                B2ByteRange bytes = B2ByteRange.between(offset, offset + buf.remaining() - 1);
+                params.setRange(bytes);
+            }
+
+            try {
+                reader = fs.b2sc.streamByName(params.build());
+            } catch (B2Exception e) {
+                err.set(-Errno.EIO.intValue());
+                if (inode.fs.flags.debugFuse) {
+                    inode.logFuse("< readFromStream", bytesRead);
+                }
+                return bytesRead;
+            }
+        }
+
+        bytesRead = MBuf.read(buf, reader, err);
+        if (err.get() != 0) {
+            if (err.get() != -1) {
+                inode.logFuse("< readFromStream error", bytesRead, err.get());
+            }
+            // always retry error on read
+            closeReader();
+            err.set(0);
+        }
+
+        if (inode.fs.flags.debugFuse) {
+            inode.logFuse("< readFromStream", bytesRead);
+        }
+        return bytesRead;
+    }
+}
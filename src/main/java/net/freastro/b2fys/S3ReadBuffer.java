@@ -16,6 +16,7 @@ class S3ReadBuffer {
     private static final int ErrUnexpectedEOF = 1;
 
     B2StorageClient b2;
+    long start;
     long offset;
     int size;
     Buffer buf;
@@ -28,6 +29,7 @@ class S3ReadBuffer {
         S3ReadBuffer b = new S3ReadBuffer();
         B2FuseFilesystem fs = fh.inode.fs;
         b.b2 = fs.b2;
+        b.start = offset;
         b.offset = offset;
         b.size = size;
 
@@ -54,7 +56,7 @@ class S3ReadBuffer {
 
             error.set(0);
             return body;
-        });
+        }, fs.readAheadPool);
 
         return b;
     }
@@ -86,6 +88,16 @@ class S3ReadBuffer {
         }
     }
 
+    // Moves back n bytes into data already read from this buffer.
+    boolean rewind(long n) {
+        if (n > offset - start || !buf.rewind(n)) {
+            return false;
+        }
+        offset -= n;
+        size += (int) n;
+        return true;
+    }
+
     /**
      * ReadAtLeast reads r into buf until it has read at least min bytes.
      * It returns the number of bytes copied and an error if fewer bytes were read.
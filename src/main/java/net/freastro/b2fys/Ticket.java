@@ -1,8 +1,15 @@
 package net.freastro.b2fys;
 
-import sun.awt.Mutex;
-import sun.misc.ConditionLock;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+// Limits how many of something, such as part uploads, are in flight at
+// once across the whole mount.
+//
+// Blocking takers are served in the order they came in, like BufferPool
+// requests, so a file with a long queue of parts can't starve one that
+// is just starting, and a large take isn't passed over forever by small
+// ones. Non-blocking takers never jump ahead of anyone who is waiting.
 class Ticket {
 
     int Total;
@@ -10,8 +17,12 @@ class Ticket {
     int total;
     int outstanding;
 
-    Mutex mu = new Mutex();
-    ConditionLock cond;
+    ReentrantLock mu = new ReentrantLock(); // everything below is protected by mu
+    Condition cond;
+
+    // FIFO order of blocked takers
+    long nextWaiter;
+    long headWaiter;
 
     Ticket() {
     }
@@ -21,8 +32,54 @@ class Ticket {
     }
 
     Ticket init() {
-        cond = new ConditionLock();
+        cond = mu.newCondition();
         total = Total;
         return this;
     }
+
+    // Takes howmany tickets, waiting for them to be returned by others if
+    // block is set. Returns false if they weren't taken.
+    boolean take(int howmany, boolean block) {
+        mu.lock();
+        try {
+            if (howmany > total) {
+                // would wait forever
+                return false;
+            }
+
+            if (!block) {
+                if (nextWaiter != headWaiter || outstanding + howmany > total) {
+                    return false;
+                }
+                outstanding += howmany;
+                return true;
+            }
+
+            long ticket = nextWaiter++;
+            try {
+                while (ticket != headWaiter || outstanding + howmany > total) {
+                    cond.awaitUninterruptibly();
+                }
+                outstanding += howmany;
+                return true;
+            } finally {
+                headWaiter++;
+                cond.signalAll();
+            }
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    // Gives back howmany tickets taken earlier.
+    void release(int howmany) {
+        mu.lock();
+        try {
+            assert outstanding >= howmany;
+            outstanding -= howmany;
+            cond.signalAll();
+        } finally {
+            mu.unlock();
+        }
+    }
 }
@@ -9,17 +9,48 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 /**
  * An input stream from B2.
+ *
+ * <p>Also readable as a channel so callers can fill a {@code ByteBuffer} without staging the data
+ * in an array of their own.</p>
  */
-public class B2Stream extends InputStream {
+public class B2Stream extends InputStream implements ReadableByteChannel {
 
     private static final String SOCKET_CLOSED_MSG = "Socket is closed";
 
+    /**
+     * Largest unread remainder that is drained on close so the connection can be reused
+     */
+    private static final long MAX_DRAIN_BYTES = 64 * 1024;
+
+    /**
+     * Size of the array used to fill direct buffers
+     */
+    private static final int TRANSFER_SIZE = 64 * 1024;
+
+    /**
+     * Number of bytes consumed from the response entity
+     */
+    private long consumed;
+
+    /**
+     * Whether this stream has been closed
+     */
+    private boolean closed;
+
+    /**
+     * Array used to fill direct buffers, allocated on first use
+     */
+    @Nullable
+    private byte[] transfer;
+
     /**
      * Cached response headers
      */
@@ -74,7 +105,11 @@ public class B2Stream extends InputStream {
     @Override
     public int read() throws IOException {
         try {
-            return getInputStream().read();
+            final int b = getInputStream().read();
+            if (b != -1) {
+                consumed++;
+            }
+            return b;
         } catch (final SocketException e) {
             if (SOCKET_CLOSED_MSG.equals(e.getMessage())) {
                 return -1;
@@ -86,7 +121,7 @@ public class B2Stream extends InputStream {
     @Override
     public int read(byte[] b) throws IOException {
         try {
-            return getInputStream().read(b);
+            return count(getInputStream().read(b));
         } catch (final SocketException e) {
             if (SOCKET_CLOSED_MSG.equals(e.getMessage())) {
                 return -1;
@@ -98,7 +133,7 @@ public class B2Stream extends InputStream {
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
         try {
-            return getInputStream().read(b, off, len);
+            return count(getInputStream().read(b, off, len));
         } catch (final SocketException e) {
             if (SOCKET_CLOSED_MSG.equals(e.getMessage())) {
                 return -1;
@@ -107,9 +142,36 @@ public class B2Stream extends InputStream {
         }
     }
 
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+
+        // heap buffers are filled in place
+        if (dst.hasArray()) {
+            final int n = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (n > 0) {
+                dst.position(dst.position() + n);
+            }
+            return n;
+        }
+
+        if (transfer == null) {
+            transfer = new byte[TRANSFER_SIZE];
+        }
+        final int n = read(transfer, 0, Math.min(dst.remaining(), transfer.length));
+        if (n > 0) {
+            dst.put(transfer, 0, n);
+        }
+        return n;
+    }
+
     @Override
     public long skip(long n) throws IOException {
-        return getInputStream().skip(n);
+        final long skipped = getInputStream().skip(n);
+        consumed += skipped;
+        return skipped;
     }
 
     @Override
@@ -117,9 +179,37 @@ public class B2Stream extends InputStream {
         return getInputStream().available();
     }
 
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
     @Override
     public void close() throws IOException {
-        response.close();
+        closed = true;
+        // Closing the response aborts the connection unless the entity was fully read. When only
+        // a little is left (or nothing, but EOF hasn't been seen yet), read it out instead so the
+        // connection goes back to the pool rather than paying for a new TLS handshake.
+        try {
+            final long length = response.getEntity().getContentLength();
+            if (length >= 0 && length - consumed <= MAX_DRAIN_BYTES) {
+                getInputStream().close();
+            }
+        } catch (final IOException e) {
+            // ignored
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Adds a read result to the number of bytes consumed.
+     */
+    private int count(final int n) {
+        if (n > 0) {
+            consumed += n;
+        }
+        return n;
     }
 
     @Override
@@ -2,25 +2,36 @@ package net.freastro.b2fys.client;
 
 import com.backblaze.b2.client.B2ClientConfig;
 import com.backblaze.b2.client.B2StorageClient;
+import com.backblaze.b2.client.contentSources.B2ContentSource;
 import com.backblaze.b2.client.contentSources.B2Headers;
 import com.backblaze.b2.client.exceptions.B2ConnectFailedException;
 import com.backblaze.b2.client.exceptions.B2ConnectionBrokenException;
 import com.backblaze.b2.client.exceptions.B2Exception;
 import com.backblaze.b2.client.exceptions.B2NetworkException;
 import com.backblaze.b2.client.exceptions.B2NetworkTimeoutException;
+import com.backblaze.b2.client.structures.B2AccountAuthorization;
 import com.backblaze.b2.client.structures.B2DownloadByIdRequest;
 import com.backblaze.b2.client.structures.B2DownloadByNameRequest;
 import com.backblaze.b2.client.structures.B2ErrorStructure;
+import com.backblaze.b2.client.structures.B2FileVersion;
+import com.backblaze.b2.client.structures.B2Part;
+import com.backblaze.b2.client.structures.B2UploadPartRequest;
+import com.backblaze.b2.client.structures.B2UploadPartUrlResponse;
 import com.backblaze.b2.client.webApiHttpClient.B2WebApiHttpClientImpl;
 import com.backblaze.b2.client.webApiHttpClient.HttpClientFactory;
 import com.backblaze.b2.json.B2Json;
+import com.backblaze.b2.json.B2JsonOptions;
 import com.backblaze.b2.util.B2ByteRange;
 
 import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.util.EntityUtils;
 
 import java.io.IOException;
@@ -33,10 +44,17 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 /**
- * Provides streams for downloading content from Backblaze B2.
+ * Provides streams for downloading content from Backblaze B2, uploads of large file parts as
+ * they become available, and server-side copies.
  */
 public class B2StreamClient {
 
+    /**
+     * Responses of newer API versions have fields the SDK doesn't know about
+     */
+    private static final B2JsonOptions RESPONSE_OPTIONS =
+            B2JsonOptions.DEFAULT_AND_ALLOW_EXTRA_FIELDS;
+
     /**
      * HTTP client factory
      */
@@ -135,42 +153,209 @@ public class B2StreamClient {
             if (200 <= statusCode && statusCode < 300) {
                 return new B2Stream(response);
             } else {
-                final String responseText = EntityUtils.toString(response.getEntity(),
-                                                                 "UTF-8");
-                try {
-                    final B2ErrorStructure err =
-                            B2Json.get().fromJson(responseText, B2ErrorStructure.class);
-                    throw B2Exception.create(err.code, err.status, null, err.message);
-                } catch (final Throwable t) {
-                    throw new B2Exception("unknown", statusCode, null, responseText);
+                throw errorFrom(response, statusCode);
+            }
+        } catch (final Exception e) {
+            throw translate(url, e);
+        }
+    }
+
+    /**
+     * Uploads a part of a large file.
+     *
+     * <p>Unlike {@link B2StorageClient#uploadLargeFile}, the caller decides when each part is
+     * sent, so a file can be uploaded as it is being written. An upload URL must not be used by
+     * two uploads at once.
+     *
+     * @see com.backblaze.b2.client.B2StorageClientWebifier#uploadPart
+     */
+    @Nonnull
+    public B2Part uploadPart(@Nonnull final B2UploadPartUrlResponse uploadUrl,
+                             @Nonnull final B2UploadPartRequest request) throws B2Exception {
+        final String url = uploadUrl.getUploadUrl();
+        final B2ContentSource source = request.getContentSource();
+
+        // Build request
+        final HttpPost post = new HttpPost(url);
+        post.setHeader(B2Headers.AUTHORIZATION, uploadUrl.getAuthorizationToken());
+        post.setHeader(B2Headers.USER_AGENT, userAgent);
+        post.setHeader(B2Headers.PART_NUMBER, Integer.toString(request.getPartNumber()));
+
+        // Process response
+        try {
+            post.setHeader(B2Headers.CONTENT_SHA1, source.getSha1OrNull());
+            post.setEntity(new InputStreamEntity(source.createInputStream(),
+                                                 source.getContentLength()));
+            try (final CloseableHttpResponse response = clientFactory.create().execute(post)) {
+                final int statusCode = response.getStatusLine().getStatusCode();
+                if (200 <= statusCode && statusCode < 300) {
+                    return B2Json.get().fromJson(EntityUtils.toString(response.getEntity(),
+                                                                      "UTF-8"),
+                                                 B2Part.class, RESPONSE_OPTIONS);
+                } else {
+                    throw errorFrom(response, statusCode);
                 }
             }
-        } catch (final B2Exception e) {
-            throw e;
-        } catch (final ConnectException e) {
-            throw new B2ConnectFailedException("connect_failed", null,
-                                               "failed to connect for " + url, e);
-        } catch (final UnknownHostException e) {
-            throw new B2ConnectFailedException("unknown_host", null, "unknown host for " + url, e);
-        } catch (final ConnectionPoolTimeoutException e) {
-            throw new B2ConnectFailedException("connect_timed_out", null,
-                                               "connect timed out for " + url, e);
-        } catch (final ConnectTimeoutException e) {
-            throw new B2ConnectFailedException("connection_pool_timed_out", null,
-                                               "connection pool timed out for " + url, e);
-        } catch (final SocketTimeoutException e) {
-            throw new B2NetworkTimeoutException("socket_timeout", null,
-                                                "socket timed out talking to " + url, e);
-        } catch (final SocketException e) {
-            throw new B2NetworkException("socket_exception", null,
-                                         "socket exception talking to " + url, e);
-        } catch (final NoHttpResponseException e) {
-            throw new B2ConnectionBrokenException("no_http_response", null,
-                                                  "didn't get an http response from " + url, e);
-        } catch (final IOException e) {
-            throw new B2NetworkException("io_exception", null, e + " talking to " + url, e);
         } catch (final Exception e) {
-            throw new B2Exception("unexpected", 500, null, "unexpected: " + e, e);
+            throw translate(url, e);
+        }
+    }
+
+    /**
+     * Copies a file of up to 5GB within B2, without its content passing through the client.
+     *
+     * <p>The SDK predates {@code b2_copy_file}, so this calls the API directly.
+     */
+    @Nonnull
+    public B2FileVersion copyFile(@Nonnull final String sourceFileId,
+                                  @Nonnull final String fileName) throws B2Exception {
+        return call("b2_copy_file", new CopyFileRequest(sourceFileId, fileName),
+                    B2FileVersion.class);
+    }
+
+    /**
+     * Copies a range of a file within B2 as a part of a large file started with
+     * {@link B2StorageClient#startLargeFile}.
+     *
+     * <p>The SDK predates {@code b2_copy_part}, so this calls the API directly.
+     */
+    @Nonnull
+    public B2Part copyPart(@Nonnull final String sourceFileId, @Nonnull final String largeFileId,
+                           final int partNumber, @Nonnull final B2ByteRange range)
+            throws B2Exception {
+        return call("b2_copy_part",
+                    new CopyPartRequest(sourceFileId, largeFileId, partNumber, range.toString()),
+                    B2Part.class);
+    }
+
+    /**
+     * Calls the specified B2 API with a JSON request.
+     */
+    @Nonnull
+    private <T> T call(@Nonnull final String api, @Nonnull final Object request,
+                       @Nonnull final Class<T> responseClass) throws B2Exception {
+        final B2AccountAuthorization auth = storageClient.getAccountAuthorization();
+        final String url = auth.getApiUrl() + "/b2api/v2/" + api;
+
+        // Build request
+        final HttpPost post = new HttpPost(url);
+        post.setHeader(B2Headers.AUTHORIZATION, auth.getAuthorizationToken());
+        post.setHeader(B2Headers.USER_AGENT, userAgent);
+
+        // Process response
+        try {
+            post.setEntity(new ByteArrayEntity(B2Json.get().toJsonUtf8Bytes(request),
+                                               ContentType.APPLICATION_JSON));
+            try (final CloseableHttpResponse response = clientFactory.create().execute(post)) {
+                final int statusCode = response.getStatusLine().getStatusCode();
+                if (200 <= statusCode && statusCode < 300) {
+                    return B2Json.get().fromJson(EntityUtils.toString(response.getEntity(),
+                                                                      "UTF-8"),
+                                                 responseClass, RESPONSE_OPTIONS);
+                } else {
+                    throw errorFrom(response, statusCode);
+                }
+            }
+        } catch (final Exception e) {
+            throw translate(url, e);
+        }
+    }
+
+    /**
+     * Reads the error returned by B2.
+     */
+    @Nonnull
+    private static B2Exception errorFrom(@Nonnull final CloseableHttpResponse response,
+                                         final int statusCode) throws IOException {
+        final String responseText = EntityUtils.toString(response.getEntity(), "UTF-8");
+        try {
+            final B2ErrorStructure err =
+                    B2Json.get().fromJson(responseText, B2ErrorStructure.class);
+            return B2Exception.create(err.code, err.status, null, err.message);
+        } catch (final Throwable t) {
+            return new B2Exception("unknown", statusCode, null, responseText);
+        }
+    }
+
+    /**
+     * Converts an exception from talking to the specified URL to a {@code B2Exception}.
+     *
+     * @see B2WebApiHttpClientImpl
+     */
+    @Nonnull
+    private static B2Exception translate(@Nonnull final String url, @Nonnull final Exception e) {
+        if (e instanceof B2Exception) {
+            return (B2Exception) e;
+        } else if (e instanceof ConnectException) {
+            return new B2ConnectFailedException("connect_failed", null,
+                                                "failed to connect for " + url, e);
+        } else if (e instanceof UnknownHostException) {
+            return new B2ConnectFailedException("unknown_host", null, "unknown host for " + url,
+                                                e);
+        } else if (e instanceof ConnectionPoolTimeoutException) {
+            return new B2ConnectFailedException("connect_timed_out", null,
+                                                "connect timed out for " + url, e);
+        } else if (e instanceof ConnectTimeoutException) {
+            return new B2ConnectFailedException("connection_pool_timed_out", null,
+                                                "connection pool timed out for " + url, e);
+        } else if (e instanceof SocketTimeoutException) {
+            return new B2NetworkTimeoutException("socket_timeout", null,
+                                                 "socket timed out talking to " + url, e);
+        } else if (e instanceof SocketException) {
+            return new B2NetworkException("socket_exception", null,
+                                          "socket exception talking to " + url, e);
+        } else if (e instanceof NoHttpResponseException) {
+            return new B2ConnectionBrokenException("no_http_response", null,
+                                                   "didn't get an http response from " + url, e);
+        } else if (e instanceof IOException) {
+            return new B2NetworkException("io_exception", null, e + " talking to " + url, e);
+        } else {
+            return new B2Exception("unexpected", 500, null, "unexpected: " + e, e);
+        }
+    }
+
+    /**
+     * Request of {@code b2_copy_file}.
+     */
+    private static class CopyFileRequest {
+
+        @B2Json.required
+        final String sourceFileId;
+
+        @B2Json.required
+        final String fileName;
+
+        @B2Json.constructor(params = "sourceFileId, fileName")
+        CopyFileRequest(final String sourceFileId, final String fileName) {
+            this.sourceFileId = sourceFileId;
+            this.fileName = fileName;
+        }
+    }
+
+    /**
+     * Request of {@code b2_copy_part}.
+     */
+    private static class CopyPartRequest {
+
+        @B2Json.required
+        final String sourceFileId;
+
+        @B2Json.required
+        final String largeFileId;
+
+        @B2Json.required
+        final int partNumber;
+
+        @B2Json.required
+        final String range;
+
+        @B2Json.constructor(params = "sourceFileId, largeFileId, partNumber, range")
+        CopyPartRequest(final String sourceFileId, final String largeFileId,
+                        final int partNumber, final String range) {
+            this.sourceFileId = sourceFileId;
+            this.largeFileId = largeFileId;
+            this.partNumber = partNumber;
+            this.range = range;
         }
     }
 }
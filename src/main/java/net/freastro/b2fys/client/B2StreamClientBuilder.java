@@ -4,7 +4,6 @@ import com.backblaze.b2.client.B2ClientConfig;
 import com.backblaze.b2.client.B2Sdk;
 import com.backblaze.b2.client.webApiHttpClient.B2StorageHttpClientBuilder;
 import com.backblaze.b2.client.webApiHttpClient.HttpClientFactory;
-import com.backblaze.b2.client.webApiHttpClient.HttpClientFactoryImpl;
 
 import javax.annotation.Nonnull;
 
@@ -25,6 +24,21 @@ public class B2StreamClientBuilder {
     @Nonnull
     private final B2StorageHttpClientBuilder storageBuilder;
 
+    /**
+     * Maximum number of pooled HTTP connections
+     */
+    private int maxConnections = PooledHttpClientFactory.DEFAULT_MAX_CONNECTIONS;
+
+    /**
+     * Maximum number of pooled HTTP connections to a single host
+     */
+    private int maxConnectionsPerRoute = PooledHttpClientFactory.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+
+    /**
+     * Seconds after which unused HTTP connections are closed
+     */
+    private int idleTimeoutSeconds = PooledHttpClientFactory.DEFAULT_IDLE_TIMEOUT_SECONDS;
+
     /**
      * Create a B2 stream client builder.
      */
@@ -40,12 +54,42 @@ public class B2StreamClientBuilder {
         storageBuilder = B2StorageHttpClientBuilder.builder(config);
     }
 
+    /**
+     * Sets the maximum number of pooled HTTP connections.
+     */
+    @Nonnull
+    public B2StreamClientBuilder setMaxConnections(final int maxConnections) {
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of pooled HTTP connections to a single host.
+     */
+    @Nonnull
+    public B2StreamClientBuilder setMaxConnectionsPerRoute(final int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        return this;
+    }
+
+    /**
+     * Sets the number of seconds after which unused HTTP connections are closed.
+     */
+    @Nonnull
+    public B2StreamClientBuilder setIdleTimeoutSeconds(final int idleTimeoutSeconds) {
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+        return this;
+    }
+
     /**
      * Build a new {@code B2StreamClient}.
      */
     @Nonnull
     public B2StreamClient build() {
-        final HttpClientFactory clientFactory = HttpClientFactoryImpl.build();
+        // API calls and downloads share one connection pool
+        final HttpClientFactory clientFactory =
+                new PooledHttpClientFactory(maxConnections, maxConnectionsPerRoute,
+                                            idleTimeoutSeconds);
         storageBuilder.setHttpClientFactory(clientFactory);
         final String userAgent = config.getUserAgent() + " " + B2Sdk.getName() + "/"
                                  + B2Sdk.getVersion();
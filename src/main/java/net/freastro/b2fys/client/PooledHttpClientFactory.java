@@ -0,0 +1,112 @@
+package net.freastro.b2fys.client;
+
+import com.backblaze.b2.client.webApiHttpClient.HttpClientFactory;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+/**
+ * An {@code HttpClientFactory} that hands out a single HTTP client backed by a shared connection
+ * pool.
+ *
+ * <p>Both the B2 API calls and the ranged downloads of {@link B2StreamClient} go through the same
+ * pool, so concurrent readers reuse established TLS connections instead of opening a new one per
+ * request. The returned client is shared and must not be closed by callers.</p>
+ */
+public class PooledHttpClientFactory implements HttpClientFactory {
+
+    /**
+     * Default maximum number of connections in the pool
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 1000;
+
+    /**
+     * Default maximum number of connections to a single host
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 1000;
+
+    /**
+     * Default number of seconds an unused connection is kept open
+     */
+    public static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 90;
+
+    private static final int CONNECTION_REQUEST_TIMEOUT_SECONDS = 5;
+    private static final int CONNECT_TIMEOUT_SECONDS = 5;
+    private static final int SOCKET_TIMEOUT_SECONDS = 20;
+
+    /**
+     * Connection pool
+     */
+    @Nonnull
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    /**
+     * Shared HTTP client
+     */
+    @Nonnull
+    private final CloseableHttpClient client;
+
+    /**
+     * Constructs a {@code PooledHttpClientFactory}.
+     *
+     * @param maxConnections        maximum number of connections in the pool
+     * @param maxConnectionsPerRoute maximum number of connections to a single host
+     * @param idleTimeoutSeconds    seconds after which unused connections are closed
+     */
+    public PooledHttpClientFactory(final int maxConnections, final int maxConnectionsPerRoute,
+                                   final int idleTimeoutSeconds) {
+        connectionManager = new PoolingHttpClientConnectionManager(idleTimeoutSeconds,
+                                                                   TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        // check connections that sat in the pool for a while before reusing them
+        connectionManager.setValidateAfterInactivity(2000);
+
+        final RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT_SECONDS * 1000)
+                .setConnectTimeout(CONNECT_TIMEOUT_SECONDS * 1000)
+                .setSocketTimeout(SOCKET_TIMEOUT_SECONDS * 1000)
+                .build();
+
+        // keep connections alive as long as the server allows, but no longer than
+        // we would let them sit idle
+        final long maxKeepAliveMillis = TimeUnit.SECONDS.toMillis(idleTimeoutSeconds);
+        final ConnectionKeepAliveStrategy keepAlive = (response, context) -> {
+            final long duration = DefaultConnectionKeepAliveStrategy.INSTANCE
+                    .getKeepAliveDuration(response, context);
+            return (duration > 0) ? Math.min(duration, maxKeepAliveMillis) : maxKeepAliveMillis;
+        };
+
+        client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAlive)
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeoutSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    @Override
+    public CloseableHttpClient create() {
+        return client;
+    }
+
+    @Override
+    public void close() {
+        try {
+            client.close();
+        } catch (final IOException e) {
+            // ignored
+        }
+        connectionManager.shutdown();
+    }
+}
@@ -7,7 +7,17 @@ import com.backblaze.b2.client.exceptions.B2Exception;
 import com.backblaze.b2.client.structures.B2Bucket;
 import com.backblaze.b2.client.structures.B2DownloadByNameRequest;
 import com.backblaze.b2.client.structures.B2FileVersion;
+import com.backblaze.b2.client.structures.B2FinishLargeFileRequest;
+import com.backblaze.b2.client.structures.B2GetUploadPartUrlRequest;
 import com.backblaze.b2.client.structures.B2ListFileNamesRequest;
+import com.backblaze.b2.client.structures.B2ListFileVersionsRequest;
+import com.backblaze.b2.client.structures.B2Part;
+import com.backblaze.b2.client.structures.B2StartLargeFileRequest;
+import com.backblaze.b2.client.structures.B2UploadFileRequest;
+import com.backblaze.b2.client.structures.B2UploadPartRequest;
+import com.backblaze.b2.client.structures.B2UploadPartUrlResponse;
+import com.backblaze.b2.util.B2ByteRange;
+import com.backblaze.b2.util.B2Sha1;
 
 import net.freastro.b2fys.client.B2Stream;
 import net.freastro.b2fys.client.B2StreamClient;
@@ -19,19 +29,37 @@ import org.junit.Test;
 import org.mockito.Mockito;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 import javax.annotation.Nonnull;
 
 import co.paralleluniverse.fuse.DirectoryFiller;
 import co.paralleluniverse.fuse.StructFuseFileInfo;
+import jnr.constants.platform.Errno;
 import jnr.ffi.Pointer;
 import jnr.ffi.Runtime;
 
@@ -95,6 +123,169 @@ public class B2FuseFilesystemTest {
         Assert.assertEquals(42, stat.size());
     }
 
+    /**
+     * Test that a slow lookup does not block operations on other paths.
+     */
+    @Test(timeout = 10000)
+    public void testConcurrentLookUp() throws Exception {
+        // Mock B2 client that stalls listing "slow" until released
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final B2StorageClient b2 = createB2StorageClient();
+        Mockito.when(b2.fileNames(Mockito.any(B2ListFileNamesRequest.class))).then(answer -> {
+            final B2ListFileNamesRequest request = answer.getArgument(0);
+            if (request.getPrefix().equals("slow")) {
+                entered.countDown();
+                release.await();
+            }
+            return (B2ListFilesIterable) Collections::emptyIterator;
+        });
+
+        final B2FuseFilesystem fs = createFilesystem(b2);
+
+        // Start a lookup that blocks inside B2
+        final Thread slow = new Thread(() -> fs.getattr("/slow", new MockStructStat("/slow")));
+        slow.start();
+        entered.await();
+
+        // Other paths should still be served
+        final MockStructStat stat = new MockStructStat("/");
+        Assert.assertEquals(0, fs.getattr(stat.path(), stat));
+        Assert.assertEquals(4096, stat.size());
+
+        release.countDown();
+        slow.join();
+    }
+
+    /**
+     * Test that concurrent lookups of the same path share one set of B2 calls.
+     */
+    @Test(timeout = 10000)
+    public void testCoalescedLookUp() throws Exception {
+        // Mock B2 client that stalls listing "file" until released
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final B2StorageClient b2 = createB2StorageClient();
+        Mockito.when(b2.fileNames(Mockito.any(B2ListFileNamesRequest.class))).then(answer -> {
+            final B2ListFileNamesRequest request = answer.getArgument(0);
+            if (request.getPrefix().equals("file")) {
+                calls.incrementAndGet();
+                entered.countDown();
+                release.await();
+                return (B2ListFilesIterable) () -> {
+                    final B2FileVersion file = new B2FileVersion(
+                            "100", "file", 42, "text/plain", "",
+                            Collections.emptyMap(), "", 515196900000L);
+                    return Collections.singletonList(file).iterator();
+                };
+            }
+            return (B2ListFilesIterable) Collections::emptyIterator;
+        });
+
+        final B2FuseFilesystem fs = createFilesystem(b2);
+
+        // Start two lookups of the same path
+        final MockStructStat first = new MockStructStat("/file");
+        final Thread firstThread = new Thread(() -> fs.getattr(first.path(), first));
+        firstThread.start();
+        entered.await();
+
+        final MockStructStat second = new MockStructStat("/file");
+        final Thread secondThread = new Thread(() -> fs.getattr(second.path(), second));
+        secondThread.start();
+        while (secondThread.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+
+        release.countDown();
+        firstThread.join();
+        secondThread.join();
+
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(42, first.size());
+        Assert.assertEquals(42, second.size());
+    }
+
+    /**
+     * Test that missing paths are cached until their directory is listed again.
+     */
+    @Test
+    public void testNegativeLookUp() throws Exception {
+        // Mock B2 client with an empty bucket
+        final AtomicInteger calls = new AtomicInteger();
+        final B2StorageClient b2 = createB2StorageClient();
+        Mockito.when(b2.fileNames(Mockito.any(B2ListFileNamesRequest.class))).then(answer -> {
+            final B2ListFileNamesRequest request = answer.getArgument(0);
+            if (request.getPrefix().equals("missing")) {
+                calls.incrementAndGet();
+            }
+            return (B2ListFilesIterable) Collections::emptyIterator;
+        });
+
+        final B2FuseFilesystem fs = createFilesystem(b2);
+
+        // Second lookup is served from the cache
+        MockStructStat stat = new MockStructStat("/missing");
+        Assert.assertEquals(-Errno.ENOENT.intValue(), fs.getattr(stat.path(), stat));
+        Assert.assertEquals(-Errno.ENOENT.intValue(), fs.getattr(stat.path(), stat));
+        Assert.assertEquals(1, calls.get());
+
+        // Listing the parent invalidates the entry
+        final StructFuseFileInfo info = createFileInfo("/");
+        Assert.assertEquals(0, fs.opendir("/", info));
+        Assert.assertEquals(0, fs.readdir("/", info, createDirectoryFiller(new ArrayList<>())));
+        Assert.assertEquals(0, fs.releasedir("/", info));
+
+        Assert.assertEquals(-Errno.ENOENT.intValue(), fs.getattr(stat.path(), stat));
+        Assert.assertEquals(2, calls.get());
+    }
+
+    /**
+     * Test the ordering of directory children.
+     */
+    @Test
+    public void testChildIndex() throws Exception {
+        final B2FuseFilesystem fs = createFilesystem(createB2StorageClient());
+        final Inode root = fs.getInodeOrDie(Inode.RootInodeID);
+
+        // Insert files and dirs out of order
+        final List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(42));
+        for (int i : order) {
+            final DirHandleEntry en = new DirHandleEntry();
+            en.name = String.format("%04d", i);
+            en.type = (i % 10 == 0) ? syscall.DT_Directory : syscall.DT_File;
+            en.attributes = new InodeAttributes();
+            fs.insertInodeFromDirEntry(root, en);
+        }
+
+        // Dirs sort first, then by name
+        Assert.assertEquals(1000, root.dir.numChildren);
+        for (int i = 1; i < root.dir.numChildren; ++i) {
+            Assert.assertTrue(Inode.compareChild(root.dir.children[i - 1],
+                                                 root.dir.children[i].name,
+                                                 root.dir.children[i].isDir()) < 0);
+        }
+        Assert.assertTrue(root.dir.children[0].isDir());
+        Assert.assertEquals("0000", root.dir.children[0].name);
+        Assert.assertEquals("0001", root.dir.children[100].name);
+
+        // Find and remove
+        Assert.assertNotNull(root.findChildUnlocked("0010", true));
+        Assert.assertNull(root.findChildUnlocked("0010", false));
+        Assert.assertNotNull(root.findChildUnlocked("0011", false));
+
+        root.removeChildUnlocked(root.findChildUnlocked("0011", false));
+        Assert.assertEquals(999, root.dir.numChildren);
+        Assert.assertNull(root.findChildUnlockedFull("0011"));
+        Assert.assertNotNull(root.findChildUnlockedFull("0012"));
+        Assert.assertNull(root.dir.children[999]);
+    }
+
     /**
      * Test reading directory entries.
      */
@@ -126,9 +317,11 @@ public class B2FuseFilesystemTest {
         // Test readdir
         final DirectoryFiller directoryFiller = Mockito.mock(DirectoryFiller.class);
         Mockito.when(directoryFiller.add(Mockito.any())).then(answer -> {
-            final List<String> list = new ArrayList<>(answer.getArgument(0));
+            final List<String> list = new ArrayList<>();
+            final Iterable<String> added = answer.getArgument(0);
+            added.forEach(list::add);
             Assert.assertEquals(3, list.size());
-            return null;
+            return true;
         });
         result = fs.readdir("/", info, directoryFiller);
         Assert.assertEquals(0, result);
@@ -139,6 +332,345 @@ public class B2FuseFilesystemTest {
         Assert.assertEquals(0, result);
     }
 
+    /**
+     * Test reading a directory that spans multiple list pages.
+     */
+    @Test
+    public void testReadDirPages() throws Exception {
+        // Create B2 client listing from the start file name on
+        final List<String> names = new ArrayList<>();
+        for (int i = 0; i < 2500; ++i) {
+            names.add(String.format("f%04d", i));
+        }
+        final List<String> markers = Collections.synchronizedList(new ArrayList<>());
+        // list calls made, the iterable makes one per page like the SDK's
+        final AtomicInteger calls = new AtomicInteger();
+        final B2StorageClient b2 = createB2StorageClient();
+        Mockito.when(b2.fileNames(Mockito.any(B2ListFileNamesRequest.class))).then(answer -> {
+            final B2ListFileNamesRequest request = answer.getArgument(0);
+            if (request.getPrefix().equals("")) {
+                final String start = request.getStartFileName();
+                final int pageSize = request.getMaxFileCount();
+                markers.add(start);
+                return (B2ListFilesIterable) () -> {
+                    calls.incrementAndGet();
+                    final AtomicInteger seen = new AtomicInteger();
+                    return names.stream()
+                            .filter(name -> start == null || name.compareTo(start) >= 0)
+                            .peek(name -> {
+                                if (seen.incrementAndGet() % pageSize == 1 && seen.get() > 1) {
+                                    calls.incrementAndGet();
+                                }
+                            })
+                            .map(name -> new B2FileVersion("100", name, 1, "text/plain", "",
+                                                           Collections.emptyMap(), "", 0L))
+                            .iterator();
+                };
+            } else {
+                return null;
+            }
+        });
+
+        final B2FuseFilesystem fs = createFilesystem(b2);
+
+        final StructFuseFileInfo info = createFileInfo("/");
+        Assert.assertEquals(0, fs.opendir("/", info));
+
+        // Test readdir
+        final List<String> list = new ArrayList<>();
+        Assert.assertEquals(0, fs.readdir("/", info, createDirectoryFiller(list)));
+        Assert.assertEquals(0, fs.releasedir("/", info));
+
+        Assert.assertEquals(2502, list.size());
+        Assert.assertEquals(".", list.get(0));
+        Assert.assertEquals(names, list.subList(2, list.size()));
+
+        // After the first page the rest is listed in ranges at once, cut where the names vary
+        Assert.assertEquals(null, markers.get(0));
+        final List<String> ranges = new ArrayList<>(Arrays.asList(
+                "f0999", "f1", "f2", "f3", "f4", "f5", "f6", "f7", "f8", "f9",
+                "g", "h", "i", "j", "k", "l"));
+        Assert.assertEquals(RangeLister.MAX_RANGES, ranges.size());
+        // Each range is listed a page at a time, f1* (a full page) goes on from its last name
+        ranges.add("f1999");
+        Assert.assertEquals(new HashSet<>(ranges),
+                            new HashSet<>(markers.subList(1, markers.size())));
+        Assert.assertEquals(ranges.size(), markers.size() - 1);
+        Assert.assertEquals(markers.size(), calls.get());
+
+        // A page after the first costs one call too, though it starts with the last name of
+        // the one before
+        calls.set(0);
+        final DirHandle.ListPage page = fs.getInodeOrDie(Inode.RootInodeID).openDir()
+                .listObjectsPage("", "f0999");
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(DirHandle.LIST_PAGE_SIZE - 1, page.objects.size());
+        Assert.assertEquals("f1998", page.marker);
+
+        // Every range lists ahead of readdir on its own, up to RANGE_LOOKAHEAD pages
+        for (int i = 0; i < 6000; ++i) {
+            names.add(String.format("m%04d", i));
+        }
+        markers.clear();
+        final DirHandle dh = fs.getInodeOrDie(Inode.RootInodeID).openDir();
+        final ArrayDeque<DirHandle.ListRange> ranges1 =
+                dh.listRanges("", dh.listObjectsPage("", null));
+        final DirHandle.ListRange last = ranges1.peekLast();
+        awaitLookahead(last, DirHandle.RANGE_LOOKAHEAD);
+        for (DirHandle.ListRange range : ranges1) {
+            awaitLookahead(range, 1);
+        }
+        // nothing taken yet, but the last range (f2..., then all of m*) is pages ahead
+        Assert.assertEquals(DirHandle.RANGE_LOOKAHEAD - 1,
+                            markers.stream().filter(m -> m != null && m.startsWith("m")).count());
+        Assert.assertFalse(last.exhausted());
+        // taking a page lets it list another
+        last.take().get();
+        awaitLookahead(last, DirHandle.RANGE_LOOKAHEAD);
+        Assert.assertEquals(DirHandle.RANGE_LOOKAHEAD,
+                            markers.stream().filter(m -> m != null && m.startsWith("m")).count());
+        dh.closeDir();
+
+        // and taken in order, the ranges hold every name after the first page once
+        final DirHandle dh2 = fs.getInodeOrDie(Inode.RootInodeID).openDir();
+        final List<String> rest = new ArrayList<>();
+        for (DirHandle.ListRange range : dh2.listRanges("", dh2.listObjectsPage("", null))) {
+            for (CompletableFuture<DirHandle.ListPage> next = range.take(); next != null;
+                 next = range.take()) {
+                for (B2FileVersion obj : next.get().objects) {
+                    rest.add(obj.getFileName());
+                }
+            }
+        }
+        Assert.assertEquals(names.subList(DirHandle.LIST_PAGE_SIZE, names.size()), rest);
+
+        // Names known from an earlier listing make even ranges
+        final List<String> known = names.subList(1000, 2500);
+        Assert.assertEquals(Arrays.asList("f1093", "f1187", "f1281"),
+                            RangeLister.sampleBoundaries("", names.subList(0, 1000), known)
+                                    .subList(0, 3));
+    }
+
+    /**
+     * Waits until range has listed pages pages ahead, or to its end.
+     */
+    private static void awaitLookahead(final DirHandle.ListRange range, final int pages)
+            throws InterruptedException {
+        while (true) {
+            synchronized (range) {
+                if (!range.listing && (range.done || range.pages.size() >= pages)) {
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Test that reading a directory stops once the filler is full.
+     */
+    @Test
+    public void testReadDirFillerFull() throws Exception {
+        // Create B2 client with more than a page of names
+        final AtomicInteger calls = new AtomicInteger();
+        final B2StorageClient b2 = createB2StorageClient();
+        Mockito.when(b2.fileNames(Mockito.any(B2ListFileNamesRequest.class))).then(answer -> {
+            final B2ListFileNamesRequest request = answer.getArgument(0);
+            if (request.getPrefix().equals("") && request.getStartFileName() == null) {
+                calls.incrementAndGet();
+                return (B2ListFilesIterable) () -> IntStream.range(0, 2500)
+                        .mapToObj(i -> new B2FileVersion("100", String.format("f%04d", i), 1,
+                                                         "text/plain", "",
+                                                         Collections.emptyMap(), "", 0L))
+                        .iterator();
+            } else {
+                return (B2ListFilesIterable) Collections::emptyIterator;
+            }
+        });
+
+        final B2FuseFilesystem fs = createFilesystem(b2);
+
+        final StructFuseFileInfo info = createFileInfo("/");
+        Assert.assertEquals(0, fs.opendir("/", info));
+
+        // Filler that only has room for 10 names
+        final List<String> list = new ArrayList<>();
+        final DirectoryFiller directoryFiller = Mockito.mock(DirectoryFiller.class);
+        Mockito.when(directoryFiller.add(Mockito.any())).then(answer -> {
+            final Iterable<String> added = answer.getArgument(0);
+            for (String name : added) {
+                list.add(name);
+                if (list.size() == 10) {
+                    return false;
+                }
+            }
+            return true;
+        });
+        Assert.assertEquals(0, fs.readdir("/", info, directoryFiller));
+        Assert.assertEquals(0, fs.releasedir("/", info));
+
+        Assert.assertEquals(10, list.size());
+        Assert.assertEquals("f0007", list.get(9));
+        Assert.assertEquals(1, calls.get());
+    }
+
+    /**
+     * Test that directory entries are returned sorted by name.
+     */
+    @Test
+    public void testReadDirOrder() throws Exception {
+        // Create B2 client returning names in B2 order
+        final B2StorageClient b2 = createB2StorageClient();
+        Mockito.when(b2.fileNames(Mockito.any(B2ListFileNamesRequest.class))).then(answer -> {
+            final B2ListFileNamesRequest request = answer.getArgument(0);
+            if (request.getPrefix().equals("")) {
+                return (B2ListFilesIterable) () -> Arrays.asList(
+                        new B2FileVersion("100", "a.txt", 1, "text/plain", "",
+                                          Collections.emptyMap(), "", 0L),
+                        new B2FileVersion(null, "a/", 0, null, null,
+                                          Collections.emptyMap(), "folder", 0L),
+                        new B2FileVersion("101", "b", 1, "text/plain", "",
+                                          Collections.emptyMap(), "", 0L)).iterator();
+            } else {
+                return null;
+            }
+        });
+
+        final B2FuseFilesystem fs = createFilesystem(b2);
+
+        final StructFuseFileInfo info = createFileInfo("/");
+        Assert.assertEquals(0, fs.opendir("/", info));
+
+        final List<String> list = new ArrayList<>();
+        Assert.assertEquals(0, fs.readdir("/", info, createDirectoryFiller(list)));
+        Assert.assertEquals(0, fs.releasedir("/", info));
+
+        Assert.assertEquals(Arrays.asList(".", "..", "a", "a.txt", "b"), list);
+    }
+
+    /**
+     * Test that a remount serves getattr and readdir from the metadata snapshot.
+     */
+    @Test
+    public void testMetadataSnapshot() throws Exception {
+        // Create B2 client counting list calls
+        final AtomicInteger calls = new AtomicInteger();
+        final B2StorageClient b2 = createB2StorageClient();
+        Mockito.when(b2.fileNames(Mockito.any(B2ListFileNamesRequest.class))).then(answer -> {
+            final B2ListFileNamesRequest request = answer.getArgument(0);
+            calls.incrementAndGet();
+            if (request.getPrefix().equals("")) {
+                return (B2ListFilesIterable) () -> Arrays.asList(
+                        new B2FileVersion("100", "a.txt", 42, "text/plain", "abc",
+                                          Collections.emptyMap(), "", 515196900000L),
+                        new B2FileVersion(null, "b/", 0, null, null,
+                                          Collections.emptyMap(), "folder", 0L)).iterator();
+            } else {
+                return (B2ListFilesIterable) Collections::emptyIterator;
+            }
+        });
+
+        final Path dir = Files.createTempDirectory("b2fys");
+        final FlagStorage flags = createFlags();
+        flags.metadataSnapshot = dir.resolve("metadata").toString();
+
+        // List the bucket and save what we saw
+        B2FuseFilesystem fs = createFilesystem(createB2StreamClient(b2), flags);
+        StructFuseFileInfo info = createFileInfo("/");
+        Assert.assertEquals(0, fs.opendir("/", info));
+        List<String> list = new ArrayList<>();
+        Assert.assertEquals(0, fs.readdir("/", info, createDirectoryFiller(list)));
+        Assert.assertEquals(0, fs.releasedir("/", info));
+        Assert.assertEquals(Arrays.asList(".", "..", "a.txt", "b"), list);
+        info = createFileInfo("/b");
+        Assert.assertEquals(0, fs.opendir("/b", info));
+        Assert.assertEquals(0, fs.readdir("/b", info, createDirectoryFiller(new ArrayList<>())));
+        Assert.assertEquals(0, fs.releasedir("/b", info));
+        fs.destroy();
+
+        // A new mount doesn't need to list again
+        fs = createFilesystem(createB2StreamClient(b2), flags);
+        Assert.assertEquals(2, fs.snapshot.pending.size());
+        calls.set(0);
+
+        final MockStructStat stat = new MockStructStat("/a.txt");
+        Assert.assertEquals(0, fs.getattr(stat.path(), stat));
+        Assert.assertEquals(42, stat.size());
+        Assert.assertEquals(515196900, stat.mtime());
+        Assert.assertEquals("abc", new String(
+                fs.getInodeOrDie(fs.lookUpInode("/a.txt")).s3Metadata.get("etag").array()));
+
+        info = createFileInfo("/");
+        Assert.assertEquals(0, fs.opendir("/", info));
+        final List<String> cached = new ArrayList<>();
+        Assert.assertEquals(0, fs.readdir("/", info, createDirectoryFiller(cached)));
+        Assert.assertEquals(0, fs.releasedir("/", info));
+        Assert.assertEquals(new HashSet<>(list), new HashSet<>(cached));
+        Assert.assertEquals(0, calls.get());
+
+        // Saving again keeps what wasn't looked at
+        fs.saveSnapshot();
+        fs = createFilesystem(createB2StreamClient(b2), flags);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("", "b")), fs.snapshot.pending.keySet());
+
+        // A snapshot of another prefix is ignored
+        fs.prefix = "other/";
+        final MetadataSnapshot other = new MetadataSnapshot(fs, dir.resolve("metadata")).load();
+        Assert.assertTrue(other.pending.isEmpty());
+    }
+
+    /**
+     * Test that --prefetch-metadata lists the bucket in parallel ranges and builds the tree.
+     */
+    @Test(timeout = 10000)
+    public void testPrefetchMetadata() throws Exception {
+        // Create B2 client listing from the start file name on, without delimiter
+        final List<String> names = Arrays.asList(
+                "0", "Makefile", "a/1", "a/2", "b/c/3", "b/d", "kernel/x", "z/4");
+        final List<String> starts = Collections.synchronizedList(new ArrayList<>());
+        final B2StorageClient b2 = createB2StorageClient();
+        Mockito.when(b2.fileNames(Mockito.any(B2ListFileNamesRequest.class))).then(answer -> {
+            final B2ListFileNamesRequest request = answer.getArgument(0);
+            final String start = request.getStartFileName();
+            starts.add(start);
+            return (B2ListFilesIterable) () -> names.stream()
+                    .filter(name -> name.startsWith(request.getPrefix()))
+                    .filter(name -> start == null || name.compareTo(start) >= 0)
+                    .map(name -> new B2FileVersion("100", name, 1, "text/plain", "",
+                                                   Collections.emptyMap(), "", 0L))
+                    .iterator();
+        });
+
+        final FlagStorage flags = createFlags();
+        flags.prefetchMetadata = "";
+        final B2FuseFilesystem fs = createFilesystem(createB2StreamClient(b2), flags);
+        fs.prefetch.get();
+        Assert.assertEquals(RangeLister.SPLIT_CHARS.length() + 2, starts.size());
+
+        // Everything is served from the tree
+        starts.clear();
+        final MockStructStat stat = new MockStructStat("/b/c/3");
+        Assert.assertEquals(0, fs.getattr(stat.path(), stat));
+        Assert.assertEquals(1, stat.size());
+
+        final StructFuseFileInfo info = createFileInfo("/b");
+        Assert.assertEquals(0, fs.opendir("/b", info));
+        final List<String> list = new ArrayList<>();
+        Assert.assertEquals(0, fs.readdir("/b", info, createDirectoryFiller(list)));
+        Assert.assertEquals(0, fs.releasedir("/b", info));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(".", "..", "c", "d")),
+                            new HashSet<>(list));
+
+        final MockStructStat kernel = new MockStructStat("/kernel/x");
+        Assert.assertEquals(0, fs.getattr(kernel.path(), kernel));
+        Assert.assertEquals(Collections.emptyList(), starts);
+
+        Assert.assertArrayEquals(
+                new String[]{"--prefetch-metadata", "", "--prefetch-metadata", "a/", "-f"},
+                App.massageOptionalValues(
+                        new String[]{"--prefetch-metadata", "--prefetch-metadata=a/", "-f"}));
+    }
+
     /**
      * Test reading file entries.
      */
@@ -203,6 +735,872 @@ public class B2FuseFilesystemTest {
         Assert.assertEquals(0, result);
     }
 
+    @Test
+    public void testReadFileDirect() throws Exception {
+        final byte[] content = new byte[200 * 1024];
+        new Random(42).nextBytes(content);
+
+        // Create B2 storage client
+        final B2StorageClient b2 = createB2StorageClient();
+        Mockito.when(b2.fileNames(Mockito.any(B2ListFileNamesRequest.class))).then(answer -> {
+            final B2ListFileNamesRequest request = answer.getArgument(0);
+            if (request.getPrefix().equals("") || request.getPrefix().equals("test")) {
+                return (B2ListFilesIterable) () -> {
+                    final B2FileVersion file = new B2FileVersion(
+                            "100", "test", content.length, "application/octet-stream", "",
+                            Collections.emptyMap(), "", 0L);
+                    return Collections.singletonList(file).iterator();
+                };
+            } else {
+                return null;
+            }
+        });
+
+        // Create B2 stream client
+        final B2StreamClient stream = createB2StreamClient(b2);
+        Mockito.doAnswer(answer -> {
+            final HttpEntity entity = Mockito.mock(HttpEntity.class);
+            Mockito.when(entity.getContent()).thenReturn(new ByteArrayInputStream(content));
+            Mockito.when(entity.getContentLength()).thenReturn((long) content.length);
+            final CloseableHttpResponse response = Mockito.mock(CloseableHttpResponse.class);
+            Mockito.when(response.getEntity()).thenReturn(entity);
+            return new B2Stream(response);
+        }).when(stream).streamByName(Mockito.any(B2DownloadByNameRequest.class));
+
+        final B2FuseFilesystem fs = createFilesystem(stream);
+        final StructFuseFileInfo info = createFileInfo("/test");
+        Assert.assertEquals(0, fs.open("/test", info));
+
+        // Read through a direct buffer, like the one FUSE hands us
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(128 * 1024);
+        final byte[] actual = new byte[content.length];
+        int offset = 0;
+        while (offset < content.length) {
+            buffer.clear();
+            final int result = fs.read("/test", buffer, buffer.capacity(), offset, info);
+            Assert.assertTrue(result > 0);
+            buffer.flip();
+            buffer.get(actual, offset, result);
+            offset += result;
+        }
+        Assert.assertArrayEquals(content, actual);
+
+        Assert.assertEquals(0, fs.release("/test", info));
+    }
+
+    @Test
+    public void testBufferPool() {
+        final BufferPool pool = new BufferPool();
+        pool.maxMemory = 2 * BufferPool.BUF_SIZE;
+        pool.init();
+
+        // Small requests use small pieces carved from a single slab
+        final List<ByteBuffer> small = new ArrayList<>(pool.requestMultiple(100 * 1024, false));
+        small.addAll(pool.requestMultiple(200 * 1024, false));
+        Assert.assertEquals(2, small.size());
+        Assert.assertEquals(256 * 1024, small.get(0).capacity());
+        Assert.assertTrue(small.get(0).isDirect());
+        Assert.assertEquals(1, pool.numSlabs);
+
+        // Requests are all or nothing within the budget
+        final List<ByteBuffer> big = pool.requestMultiple(BufferPool.BUF_SIZE, false);
+        Assert.assertEquals(1, big.size());
+        Assert.assertTrue(pool.requestMultiple(BufferPool.BUF_SIZE, false).isEmpty());
+        Assert.assertEquals(2, pool.numSlabs);
+
+        // Freeing the last piece returns its slab, which can then be used whole
+        small.forEach(pool::free);
+        final List<ByteBuffer> whole = pool.requestMultiple(BufferPool.BUF_SIZE, false);
+        Assert.assertEquals(1, whole.size());
+        Assert.assertEquals(BufferPool.BUF_SIZE, whole.get(0).capacity());
+        Assert.assertEquals(2, pool.numSlabs);
+
+        // Requests larger than the budget fail instead of blocking
+        Assert.assertTrue(pool.requestMultiple(3L * BufferPool.BUF_SIZE, true).isEmpty());
+
+        whole.forEach(pool::free);
+        big.forEach(pool::free);
+        Assert.assertEquals(0, pool.numBuffers);
+    }
+
+    @Test(timeout = 30000)
+    public void testReadAhead() throws Exception {
+        final byte[] content = new byte[45 * 1024 * 1024];
+        new Random(42).nextBytes(content);
+
+        final List<B2ByteRange> ranges = Collections.synchronizedList(new ArrayList<>());
+        final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        final B2FuseFilesystem fs = createFilesystem(
+                createContentStreamClient("test", content, ranges, threads));
+
+        final StructFuseFileInfo info = createFileInfo("/test");
+        Assert.assertEquals(0, fs.open("/test", info));
+
+        final byte[] actual = readFully(fs, "/test", info, content.length, 1024 * 1024);
+        Assert.assertArrayEquals(content, actual);
+
+        // An out of order read starts a new stream and leaves the first one alone
+        final FileHandle fh = fs.fileHandles.get(info.fh());
+        final ReadStream first = fh.streams.get(0);
+        final long window = first.readAheadWindow;
+        Assert.assertTrue(window > 5 * 1024 * 1024);
+        Assert.assertEquals(16, fs.read("/test", ByteBuffer.allocate(16), 16, 0, info));
+        Assert.assertEquals(2, fh.streams.size());
+        Assert.assertEquals(window, first.readAheadWindow);
+        Assert.assertEquals(0, fs.release("/test", info));
+
+        // Readahead starts with a small window past the first 5MB and grows while reads stay
+        // sequential, with chunks fetched by the workers
+        Assert.assertEquals(B2ByteRange.between(5 * 1024 * 1024, 10 * 1024 * 1024 - 1),
+                            ranges.get(0));
+        Assert.assertTrue(ranges.stream().anyMatch(r -> r.getNumberOfBytes() == 20 * 1024 * 1024));
+        Assert.assertTrue(threads.stream().anyMatch(name -> name.startsWith("readahead-")));
+    }
+
+    @Test(timeout = 30000)
+    public void testReadInterleaved() throws Exception {
+        final byte[] content = new byte[40 * 1024 * 1024];
+        new Random(42).nextBytes(content);
+
+        final List<B2ByteRange> ranges = Collections.synchronizedList(new ArrayList<>());
+        final B2FuseFilesystem fs = createFilesystem(
+                createContentStreamClient("test", content, ranges, new ArrayList<>()));
+        final StructFuseFileInfo info = createFileInfo("/test");
+        Assert.assertEquals(0, fs.open("/test", info));
+
+        // Two sequential runs read in turns, like two column chunks
+        final int chunk = 1024 * 1024;
+        final int second = 20 * 1024 * 1024;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(chunk);
+        for (int i = 0; i < 15; ++i) {
+            for (final int start : new int[]{0, second}) {
+                final int offset = start + i * chunk;
+                buffer.clear();
+                Assert.assertEquals(chunk, fs.read("/test", buffer, chunk, offset, info));
+                buffer.flip();
+                final byte[] actual = new byte[chunk];
+                buffer.get(actual);
+                Assert.assertArrayEquals(Arrays.copyOfRange(content, offset, offset + chunk),
+                                         actual);
+            }
+        }
+        Assert.assertEquals(0, fs.release("/test", info));
+
+        // Each run gets its own readahead instead of a ranged GET per read
+        Assert.assertTrue(ranges.stream().anyMatch(
+                r -> r.start < second && r.getNumberOfBytes() >= 5 * 1024 * 1024));
+        Assert.assertTrue(ranges.stream().anyMatch(
+                r -> r.start > second && r.getNumberOfBytes() >= 5 * 1024 * 1024));
+        Assert.assertTrue(ranges.size() < 15);
+    }
+
+    @Test(timeout = 30000)
+    public void testReadStrided() throws Exception {
+        final byte[] content = new byte[16 * 1024 * 1024];
+        new Random(42).nextBytes(content);
+
+        final List<B2ByteRange> ranges = Collections.synchronizedList(new ArrayList<>());
+        final B2FuseFilesystem fs = createFilesystem(
+                createContentStreamClient("test", content, ranges, new ArrayList<>()));
+        final StructFuseFileInfo info = createFileInfo("/test");
+        Assert.assertEquals(0, fs.open("/test", info));
+
+        // Read every other 64KB page
+        final int page = 64 * 1024;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(page);
+        for (int offset = 0; offset < content.length; offset += 2 * page) {
+            buffer.clear();
+            Assert.assertEquals(page, fs.read("/test", buffer, page, offset, info));
+            buffer.flip();
+            final byte[] actual = new byte[page];
+            buffer.get(actual);
+            Assert.assertArrayEquals(Arrays.copyOfRange(content, offset, offset + page), actual);
+        }
+
+        // The pages stay one stream, which switches to readahead once it has read enough
+        Assert.assertEquals(1, fs.fileHandles.get(info.fh()).streams.size());
+        Assert.assertTrue(ranges.stream().anyMatch(r -> r.getNumberOfBytes() >= 5 * 1024 * 1024));
+        Assert.assertEquals(0, fs.release("/test", info));
+    }
+
+    @Test(timeout = 30000)
+    public void testReadSeekBack() throws Exception {
+        final byte[] content = new byte[30 * 1024 * 1024];
+        new Random(42).nextBytes(content);
+
+        final List<B2ByteRange> ranges = Collections.synchronizedList(new ArrayList<>());
+        final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+        final B2FuseFilesystem fs = createFilesystem(
+                createContentStreamClient("test", content, ranges, requests));
+        final StructFuseFileInfo info = createFileInfo("/test");
+        Assert.assertEquals(0, fs.open("/test", info));
+
+        final int page = 64 * 1024;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(2 * page);
+        final int[][] reads = {
+                // serial reads, then back into the last 128KB
+                {0, page}, {page, page}, {100 * 1024, 16 * 1024}, {2 * page, page},
+                // past the first 5MB reads come from readahead, seek back across a chunk
+                {6 * 1024 * 1024, page}, {6 * 1024 * 1024 + page, page},
+                {12 * 1024 * 1024, page}, {10 * 1024 * 1024 - page, 2 * page},
+        };
+        for (final int[] read : reads) {
+            // make sure the earlier stream is read far enough to have readahead
+            if (read[0] == 6 * 1024 * 1024) {
+                readRange(fs, info, content, 3 * page, read[0] - 3 * page);
+            } else if (read[0] == 12 * 1024 * 1024) {
+                readRange(fs, info, content, 6 * 1024 * 1024 + 2 * page,
+                          read[0] - 6 * 1024 * 1024 - 2 * page);
+            }
+            final int before = requests.size();
+            final int rangesBefore = ranges.size();
+            buffer.clear();
+            buffer.limit(read[1]);
+            Assert.assertEquals(read[1], fs.read("/test", buffer, read[1], read[0], info));
+            buffer.flip();
+            final byte[] actual = new byte[read[1]];
+            buffer.get(actual);
+            Assert.assertArrayEquals(Arrays.copyOfRange(content, read[0], read[0] + read[1]),
+                                     actual);
+            if (read[0] == 100 * 1024) {
+                // seeking back doesn't start a new request
+                Assert.assertEquals(before, requests.size());
+            } else if (read[0] == 10 * 1024 * 1024 - page) {
+                // nor does it restart readahead, though the window may move on
+                for (final B2ByteRange range : ranges.subList(rangesBefore, ranges.size())) {
+                    Assert.assertTrue(ranges.toString(), range.start >= 12 * 1024 * 1024);
+                }
+            }
+        }
+
+        Assert.assertEquals(1, fs.fileHandles.get(info.fh()).streams.size());
+        Assert.assertEquals(0, fs.release("/test", info));
+    }
+
+    /**
+     * Reads a range of a file in 128KB requests and checks the content.
+     */
+    private void readRange(@Nonnull final B2FuseFilesystem fs,
+                           @Nonnull final StructFuseFileInfo info, @Nonnull final byte[] content,
+                           final int offset, final int length) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(128 * 1024);
+        int pos = offset;
+        while (pos < offset + length) {
+            buffer.clear();
+            buffer.limit(Math.min(buffer.capacity(), offset + length - pos));
+            final int result = fs.read("/test", buffer, buffer.limit(), pos, info);
+            Assert.assertEquals(buffer.limit(), result);
+            buffer.flip();
+            final byte[] actual = new byte[result];
+            buffer.get(actual);
+            Assert.assertArrayEquals(Arrays.copyOfRange(content, pos, pos + result), actual);
+            pos += result;
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testBlockCache() throws Exception {
+        final byte[] content = new byte[12 * 1024 * 1024 + 1000];
+        new Random(42).nextBytes(content);
+
+        final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+        final FlagStorage flags = createFlags();
+        flags.maxBufferMemory = 40 * 1024 * 1024;
+        flags.blockCacheSize = 32 * 1024 * 1024;
+        final B2FuseFilesystem fs = createFilesystem(
+                createContentStreamClient("test", content, new ArrayList<>(), requests), flags);
+        // The cache gets at most half of the buffer memory
+        Assert.assertEquals(20 * 1024 * 1024, fs.blockCache.maxBytes);
+
+        // The first reader downloads the file and fills the cache
+        StructFuseFileInfo info = createFileInfo("/test");
+        Assert.assertEquals(0, fs.open("/test", info));
+        Assert.assertArrayEquals(content, readFully(fs, "/test", info, content.length, 128 * 1024));
+        Assert.assertEquals(0, fs.release("/test", info));
+        Assert.assertEquals(13, fs.blockCache.blocks.size());
+        // and its blocks are buffers from the pool
+        Assert.assertEquals(13, fs.bufferPool.numBuffers);
+
+        // Reading it again, with different read sizes, is served from memory
+        final int before = requests.size();
+        info = createFileInfo("/test");
+        Assert.assertEquals(0, fs.open("/test", info));
+        Assert.assertArrayEquals(content, readFully(fs, "/test", info, content.length, 100000));
+        Assert.assertEquals(0, fs.release("/test", info));
+        Assert.assertEquals(before, requests.size());
+    }
+
+    @Test(timeout = 30000)
+    public void testDiskCache() throws Exception {
+        final byte[] content = new byte[3 * 1024 * 1024 + 1000];
+        new Random(42).nextBytes(content);
+        final Path dir = Files.createTempDirectory("b2fys");
+
+        final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+        final FlagStorage flags = createFlags();
+        Assert.assertTrue(FlagStorage.parseCache(flags, "--free:0%:" + dir));
+        Assert.assertEquals(dir.toString(), flags.cacheDir);
+        final B2StreamClient client =
+                createContentStreamClient("test", content, new ArrayList<>(), requests);
+
+        // The first mount downloads the file and writes it to disk
+        B2FuseFilesystem fs = createFilesystem(client, flags);
+        StructFuseFileInfo info = createFileInfo("/test");
+        Assert.assertEquals(0, fs.open("/test", info));
+        Assert.assertArrayEquals(content, readFully(fs, "/test", info, content.length, 128 * 1024));
+        Assert.assertEquals(0, fs.release("/test", info));
+        Assert.assertEquals(4, fs.diskCache.files.size());
+        // the pool buffer the blocks were collected in is back
+        Assert.assertEquals(0, fs.bufferPool.numBuffers);
+
+        // A new mount reads it from disk
+        int before = requests.size();
+        fs = createFilesystem(client, flags);
+        Assert.assertEquals(4, fs.diskCache.files.size());
+        info = createFileInfo("/test");
+        Assert.assertEquals(0, fs.open("/test", info));
+        Assert.assertArrayEquals(content, readFully(fs, "/test", info, content.length, 100000));
+        Assert.assertEquals(0, fs.release("/test", info));
+        Assert.assertEquals(before, requests.size());
+        Assert.assertEquals(4, fs.diskCache.mapped.size());
+
+        // A corrupted block is dropped and downloaded again
+        final Path block = fs.diskCache.files.keySet().iterator().next();
+        final byte[] data = Files.readAllBytes(block);
+        data[0] ^= 1;
+        Files.write(block, data);
+        fs = createFilesystem(client, flags);
+        info = createFileInfo("/test");
+        Assert.assertEquals(0, fs.open("/test", info));
+        Assert.assertArrayEquals(content, readFully(fs, "/test", info, content.length, 100000));
+        Assert.assertEquals(0, fs.release("/test", info));
+        Assert.assertTrue(requests.size() > before);
+
+        // Watermarks
+        Assert.assertTrue(FlagStorage.parseCache(flags, "--free:5G:" + dir));
+        Assert.assertEquals(5L * 1024 * 1024 * 1024, flags.cacheFreeBytes);
+        Assert.assertFalse(FlagStorage.parseCache(flags, "--free::" + dir));
+        Assert.assertTrue(FlagStorage.parseCache(flags, dir.toString()));
+        Assert.assertEquals(FlagStorage.DEFAULT_CACHE_FREE_RATIO, flags.cacheFreeRatio, 0);
+        Assert.assertFalse(FlagStorage.parseCache(flags, "--free:10%:" + dir.resolve("none")));
+    }
+
+    /**
+     * Test writing files as a single upload and as a large file.
+     */
+    @Test(timeout = 30000)
+    public void testWriteFile() throws Exception {
+        final Map<String, byte[]> smallFiles = new ConcurrentHashMap<>();
+        final Map<Integer, byte[]> parts = new ConcurrentHashMap<>();
+        final List<String> partSha1s = new ArrayList<>();
+        // threads the large file was started and its parts uploaded from
+        final Set<String> uploaders = ConcurrentHashMap.newKeySet();
+
+        // Create B2 storage client
+        final B2StorageClient b2 = createB2StorageClient();
+        Mockito.when(b2.uploadSmallFile(Mockito.any(B2UploadFileRequest.class))).then(answer -> {
+            final B2UploadFileRequest request = answer.getArgument(0);
+            final byte[] data = readAll(request.getContentSource().createInputStream());
+            final String sha1 = B2Sha1.hexSha1OfBytes(data);
+            Assert.assertEquals(sha1, request.getContentSource().getSha1OrNull());
+            smallFiles.put(request.getFileName(), data);
+            return new B2FileVersion("1", request.getFileName(), data.length, "text/plain", sha1,
+                                     Collections.emptyMap(), "upload", 1000L);
+        });
+        Mockito.when(b2.startLargeFile(Mockito.any(B2StartLargeFileRequest.class)))
+                .then(answer -> {
+                    uploaders.add(Thread.currentThread().getName());
+                    return new B2FileVersion("2", "big", 0, "", "none",
+                                             Collections.emptyMap(), "start", 0L);
+                });
+        Mockito.when(b2.getUploadPartUrl(Mockito.any(B2GetUploadPartUrlRequest.class)))
+                .then(answer -> new B2UploadPartUrlResponse("2", "http://upload", "token"));
+        Mockito.when(b2.finishLargeFile(Mockito.any(B2FinishLargeFileRequest.class)))
+                .then(answer -> {
+                    final B2FinishLargeFileRequest request = answer.getArgument(0);
+                    Assert.assertEquals("2", request.getFileId());
+                    partSha1s.addAll(request.getPartSha1Array());
+                    return new B2FileVersion("2", "big", 0, "", "none", Collections.emptyMap(),
+                                             "upload", 2000L);
+                });
+
+        // Create B2 stream client
+        final B2StreamClient stream = createB2StreamClient(b2);
+        Mockito.doAnswer(answer -> {
+            final B2UploadPartRequest request = answer.getArgument(1);
+            final byte[] data = readAll(request.getContentSource().createInputStream());
+            final String sha1 = B2Sha1.hexSha1OfBytes(data);
+            Assert.assertEquals(sha1, request.getContentSource().getSha1OrNull());
+            parts.put(request.getPartNumber(), data);
+            uploaders.add(Thread.currentThread().getName());
+            return new B2Part("2", request.getPartNumber(), data.length, sha1, 0L);
+        }).when(stream).uploadPart(Mockito.any(B2UploadPartUrlResponse.class),
+                                   Mockito.any(B2UploadPartRequest.class));
+
+        final B2FuseFilesystem fs = createFilesystem(stream);
+
+        // Test small file
+        final StructFuseFileInfo small = createFileInfo("/small");
+        Assert.assertEquals(0, fs.create("/small", 0644, small));
+        final byte[] hello = "Hello, world!".getBytes();
+        Assert.assertEquals(hello.length,
+                            fs.write("/small", ByteBuffer.wrap(hello), hello.length, 0, small));
+        Assert.assertEquals(0, fs.flush("/small", small));
+        Assert.assertEquals(0, fs.release("/small", small));
+        Assert.assertArrayEquals(hello, smallFiles.get("small"));
+        Mockito.verify(b2, Mockito.never()).startLargeFile(Mockito.any());
+
+        // Test creating an existing file again, which truncates it
+        final StructFuseFileInfo again = createFileInfo("/small");
+        Assert.assertEquals(0, fs.create("/small", 0644, again));
+        final Inode truncated = fs.fileHandles.get(again.fh()).inode;
+        Assert.assertEquals(0, truncated.attributes.size);
+        Assert.assertEquals(0, fs.flush("/small", again));
+        Assert.assertEquals(0, fs.release("/small", again));
+        Assert.assertEquals(0, smallFiles.get("small").length);
+        Assert.assertEquals(0, truncated.knownSize);
+
+        // Test file of exactly one part, which B2 won't take as a large file
+        final byte[] part = new byte[5 * 1024 * 1024];
+        new Random(5).nextBytes(part);
+        final StructFuseFileInfo one = createFileInfo("/one");
+        Assert.assertEquals(0, fs.create("/one", 0644, one));
+        for (int offset = 0; offset < part.length; offset += 128 * 1024) {
+            final ByteBuffer buffer = ByteBuffer.wrap(part, offset, 128 * 1024);
+            Assert.assertEquals(128 * 1024, fs.write("/one", buffer, 128 * 1024, offset, one));
+        }
+        Assert.assertEquals(0, fs.flush("/one", one));
+        Assert.assertEquals(0, fs.release("/one", one));
+        Assert.assertArrayEquals(part, smallFiles.get("one"));
+        Mockito.verify(b2, Mockito.never()).startLargeFile(Mockito.any());
+
+        // Test large file, written in FUSE sized chunks
+        final byte[] content = new byte[12 * 1024 * 1024];
+        new Random(21).nextBytes(content);
+        final StructFuseFileInfo big = createFileInfo("/big");
+        Assert.assertEquals(0, fs.create("/big", 0644, big));
+        final int chunk = 128 * 1024;
+        for (int offset = 0; offset < content.length; offset += chunk) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(chunk);
+            buffer.put(content, offset, chunk).flip();
+            Assert.assertEquals(chunk, fs.write("/big", buffer, chunk, offset, big));
+        }
+        Assert.assertEquals(0, fs.flush("/big", big));
+
+        Assert.assertEquals(3, parts.size());
+        Assert.assertEquals(5 * 1024 * 1024, parts.get(1).length);
+        Assert.assertEquals(5 * 1024 * 1024, parts.get(2).length);
+        Assert.assertEquals(2 * 1024 * 1024, parts.get(3).length);
+        final byte[] uploaded = new byte[content.length];
+        int offset = 0;
+        for (int i = 1; i <= 3; ++i) {
+            System.arraycopy(parts.get(i), 0, uploaded, offset, parts.get(i).length);
+            offset += parts.get(i).length;
+            Assert.assertEquals(B2Sha1.hexSha1OfBytes(parts.get(i)), partSha1s.get(i - 1));
+        }
+        Assert.assertArrayEquals(content, uploaded);
+        Assert.assertEquals(0, fs.replicators.outstanding);
+        Assert.assertFalse(uploaders.isEmpty());
+        for (String thread : uploaders) {
+            Assert.assertTrue(thread, thread.startsWith("upload-"));
+        }
+
+        final Inode inode = fs.fileHandles.get(big.fh()).inode;
+        Assert.assertEquals(content.length, inode.attributes.size);
+        Assert.assertEquals(content.length, inode.knownSize);
+
+        // Test non-sequential write
+        final ByteBuffer buffer = ByteBuffer.wrap(hello);
+        Assert.assertEquals(-Errno.EOPNOTSUPP.intValue(),
+                            fs.write("/big", buffer, hello.length, 42, big));
+        Assert.assertEquals(-Errno.EOPNOTSUPP.intValue(), fs.flush("/big", big));
+        Assert.assertEquals(content.length, inode.attributes.size);
+        Assert.assertEquals(0, fs.release("/big", big));
+    }
+
+    /**
+     * Test uploading files in the background after they are closed.
+     */
+    @Test(timeout = 30000)
+    public void testWriteBack() throws Exception {
+        final Map<String, byte[]> uploads = new ConcurrentHashMap<>();
+        final CountDownLatch uploading = new CountDownLatch(1);
+
+        // Create B2 storage client that uploads once let through
+        final B2StorageClient b2 = createB2StorageClient();
+        Mockito.when(b2.uploadSmallFile(Mockito.any(B2UploadFileRequest.class))).then(answer -> {
+            uploading.await();
+            final B2UploadFileRequest request = answer.getArgument(0);
+            final byte[] data = readAll(request.getContentSource().createInputStream());
+            uploads.put(request.getFileName(), data);
+            return new B2FileVersion("1", request.getFileName(), data.length, "text/plain",
+                                     B2Sha1.hexSha1OfBytes(data), Collections.emptyMap(),
+                                     "upload", 1000L);
+        });
+
+        final FlagStorage flags = createFlags();
+        flags.writeBack = true;
+        final B2FuseFilesystem fs = createFilesystem(createB2StreamClient(b2), flags);
+        final byte[] hello = "Hello, world!".getBytes();
+
+        // Test close, with the upload left to the background
+        final StructFuseFileInfo info = createFileInfo("/file");
+        Assert.assertEquals(0, fs.create("/file", 0644, info));
+        Assert.assertEquals(hello.length,
+                            fs.write("/file", ByteBuffer.wrap(hello), hello.length, 0, info));
+        Assert.assertEquals(0, fs.flush("/file", info));
+        Assert.assertEquals(0, fs.release("/file", info));
+        Assert.assertTrue(uploads.isEmpty());
+        final MockStructStat stat = new MockStructStat("/file");
+        Assert.assertEquals(0, fs.getattr(stat.path(), stat));
+        Assert.assertEquals(hello.length, stat.size());
+
+        // Test open, which waits for the upload
+        uploading.countDown();
+        final StructFuseFileInfo reopened = createFileInfo("/file");
+        Assert.assertEquals(0, fs.open("/file", reopened));
+        Assert.assertArrayEquals(hello, uploads.get("file"));
+        Assert.assertTrue(fs.writeBacks.isEmpty());
+        Assert.assertEquals(0, fs.release("/file", reopened));
+
+        // Test fsync, which uploads right away
+        final StructFuseFileInfo synced = createFileInfo("/synced");
+        Assert.assertEquals(0, fs.create("/synced", 0644, synced));
+        Assert.assertEquals(hello.length,
+                            fs.write("/synced", ByteBuffer.wrap(hello), hello.length, 0, synced));
+        Assert.assertEquals(0, fs.fsync("/synced", 0, synced));
+        Assert.assertArrayEquals(hello, uploads.get("synced"));
+        Assert.assertEquals(0, fs.release("/synced", synced));
+        Assert.assertTrue(fs.writeBacks.isEmpty());
+        Assert.assertEquals(0, fs.replicators.outstanding);
+    }
+
+    /**
+     * Test renaming files and directories by copying within B2.
+     */
+    @Test(timeout = 30000)
+    public void testRename() throws Exception {
+        // Create B2 client over a mutable bucket
+        final Map<String, String> objects = new ConcurrentSkipListMap<>();
+        for (final String name : Arrays.asList("a/1", "a/2", "a/sub/3", "f")) {
+            objects.put(name, "id-" + name);
+        }
+        // older versions of some of them
+        final Map<String, String> oldVersions = new ConcurrentHashMap<>();
+        oldVersions.put("f", "id-f-old");
+        oldVersions.put("a/2", "id-a/2-old");
+        final B2StorageClient b2 = createB2StorageClient();
+        Mockito.when(b2.fileNames(Mockito.any(B2ListFileNamesRequest.class))).then(answer -> {
+            final B2ListFileNamesRequest request = answer.getArgument(0);
+            final String start = request.getStartFileName();
+            return (B2ListFilesIterable) () -> new ArrayList<>(objects.entrySet()).stream()
+                    .filter(e -> e.getKey().startsWith(request.getPrefix()))
+                    .filter(e -> start == null || e.getKey().compareTo(start) >= 0)
+                    .map(e -> new B2FileVersion(e.getValue(), e.getKey(), 1, "text/plain", "",
+                                                Collections.emptyMap(), "upload", 0L))
+                    .iterator();
+        });
+        Mockito.when(b2.fileVersions(Mockito.any(B2ListFileVersionsRequest.class))).then(answer -> {
+            final B2ListFileVersionsRequest request = answer.getArgument(0);
+            final String start = request.getStartFileName();
+            final List<B2FileVersion> versions = new ArrayList<>();
+            for (final Map.Entry<String, String> e : objects.entrySet()) {
+                final List<String> ids = new ArrayList<>(Collections.singletonList(e.getValue()));
+                if (oldVersions.containsKey(e.getKey())) {
+                    ids.add(oldVersions.get(e.getKey()));
+                }
+                for (final String id : ids) {
+                    versions.add(new B2FileVersion(id, e.getKey(), 1, "text/plain", "",
+                                                   Collections.emptyMap(), "upload", 0L));
+                }
+            }
+            return (B2ListFilesIterable) () -> versions.stream()
+                    .filter(v -> v.getFileName().startsWith(request.getPrefix()))
+                    .filter(v -> start == null || v.getFileName().compareTo(start) >= 0)
+                    .iterator();
+        });
+        Mockito.doAnswer(answer -> {
+            final String name = answer.getArgument(0);
+            final String id = answer.getArgument(1);
+            if (!oldVersions.remove(name, id)) {
+                Assert.assertEquals(id, objects.remove(name));
+            }
+            return null;
+        }).when(b2).deleteFileVersion(Mockito.anyString(), Mockito.anyString());
+
+        final B2StreamClient stream = createB2StreamClient(b2);
+        final List<String> copies = Collections.synchronizedList(new ArrayList<>());
+        Mockito.doAnswer(answer -> {
+            final String sourceFileId = answer.getArgument(0);
+            final String fileName = answer.getArgument(1);
+            Assert.assertTrue(objects.containsValue(sourceFileId));
+            copies.add(fileName);
+            objects.put(fileName, "id-" + fileName);
+            return new B2FileVersion("id-" + fileName, fileName, 1, "text/plain", "",
+                                     Collections.emptyMap(), "copy", 0L);
+        }).when(stream).copyFile(Mockito.anyString(), Mockito.anyString());
+
+        final FlagStorage flags = createFlags();
+        flags.prefetchMetadata = "";
+        final B2FuseFilesystem fs = createFilesystem(stream, flags);
+        fs.prefetch.get();
+
+        // Test file
+        Assert.assertEquals(0, fs.rename("/f", "/g"));
+        Assert.assertEquals(Collections.singletonList("g"), copies);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a/1", "a/2", "a/sub/3", "g")),
+                            objects.keySet());
+        Assert.assertFalse(oldVersions.containsKey("f"));
+        Assert.assertEquals(0, fs.getattr("/g", new MockStructStat("/g")));
+        Assert.assertEquals(-Errno.ENOENT.intValue(),
+                            fs.getattr("/f", new MockStructStat("/f")));
+
+        // Test directory
+        copies.clear();
+        Assert.assertEquals(0, fs.rename("/a", "/z"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("z/1", "z/2", "z/sub/3")),
+                            new HashSet<>(copies));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("g", "z/1", "z/2", "z/sub/3")),
+                            objects.keySet());
+        Assert.assertTrue(oldVersions.isEmpty());
+        final MockStructStat stat = new MockStructStat("/z/sub/3");
+        Assert.assertEquals(0, fs.getattr(stat.path(), stat));
+        Assert.assertEquals(1, stat.size());
+
+        // Test invalid
+        Assert.assertEquals(-Errno.EINVAL.intValue(), fs.rename("/z", "/z/sub/y"));
+        Assert.assertEquals(-Errno.EISDIR.intValue(), fs.rename("/g", "/z"));
+        Assert.assertEquals(-Errno.ENOENT.intValue(), fs.rename("/none", "/z/none"));
+        Assert.assertEquals(0, fs.replicators.outstanding);
+    }
+
+    /**
+     * Test deleting files and directories.
+     */
+    @Test(timeout = 30000)
+    public void testDelete() throws Exception {
+        // Create B2 client over a mutable bucket of name and version, newest first
+        final Map<String, String> versions = new ConcurrentSkipListMap<>();
+        for (final String name : Arrays.asList("a/1", "a/2", "a/sub/3", "d/", "e", "f")) {
+            versions.put(name + "\0" + 0, "id-" + name);
+        }
+        versions.put("f\0" + 1, "id-f-old");
+        for (int i = 0; i < 50; ++i) {
+            versions.put("big/" + i + "\0" + 0, "id-big/" + i);
+        }
+        final AtomicInteger listings = new AtomicInteger();
+        final B2StorageClient b2 = createB2StorageClient();
+        Mockito.when(b2.fileNames(Mockito.any(B2ListFileNamesRequest.class))).then(answer -> {
+            final B2ListFileNamesRequest request = answer.getArgument(0);
+            listings.incrementAndGet();
+            return listVersions(versions, request.getPrefix(), request.getStartFileName(), true);
+        });
+        Mockito.when(b2.fileVersions(Mockito.any(B2ListFileVersionsRequest.class))).then(answer -> {
+            final B2ListFileVersionsRequest request = answer.getArgument(0);
+            return listVersions(versions, request.getPrefix(), request.getStartFileName(), false);
+        });
+        Mockito.doAnswer(answer -> {
+            final String name = answer.getArgument(0);
+            final String id = answer.getArgument(1);
+            Assert.assertTrue(versions.entrySet().removeIf(
+                    e -> e.getKey().startsWith(name + "\0") && e.getValue().equals(id)));
+            return null;
+        }).when(b2).deleteFileVersion(Mockito.anyString(), Mockito.anyString());
+
+        final FlagStorage flags = createFlags();
+        flags.prefetchMetadata = "";
+        final B2FuseFilesystem fs = createFilesystem(createB2StreamClient(b2), flags);
+        fs.prefetch.get();
+
+        // Test file, with every version deleted in the background
+        Assert.assertEquals(0, fs.unlink("/f"));
+        Assert.assertEquals(-Errno.ENOENT.intValue(), fs.getattr("/f", new MockStructStat("/f")));
+        waitForDeletes(fs);
+        Assert.assertFalse(versions.keySet().stream().anyMatch(k -> k.startsWith("f\0")));
+
+        // Test directory, known to be empty once its files are unlinked
+        Assert.assertEquals(-Errno.EISDIR.intValue(), fs.unlink("/a"));
+        Assert.assertEquals(-Errno.ENOTDIR.intValue(), fs.rmdir("/a/1"));
+        Assert.assertEquals(-Errno.ENOTEMPTY.intValue(), fs.rmdir("/a"));
+        for (final String path : Arrays.asList("/a/1", "/a/2", "/a/sub/3")) {
+            Assert.assertEquals(0, fs.unlink(path));
+        }
+        final int listed = listings.get();
+        Assert.assertEquals(0, fs.rmdir("/a/sub"));
+        Assert.assertEquals(0, fs.rmdir("/a"));
+        Assert.assertEquals(listed, listings.get());
+        Assert.assertEquals(-Errno.ENOENT.intValue(), fs.getattr("/a", new MockStructStat("/a")));
+
+        // Test directory object
+        Assert.assertEquals(0, fs.rmdir("/d"));
+        waitForDeletes(fs);
+        Assert.assertFalse(versions.keySet().stream().anyMatch(
+                k -> k.startsWith("a/") || k.startsWith("d/")));
+
+        // Test tree
+        flags.fastDelete = true;
+        Assert.assertEquals(0, fs.setxattr("/big", B2FuseFilesystem.RMTREE_XATTR,
+                                           ByteBuffer.allocate(0), 0, 0, 0));
+        Assert.assertFalse(versions.keySet().stream().anyMatch(k -> k.startsWith("big/")));
+        Assert.assertEquals(-Errno.ENOENT.intValue(),
+                            fs.getattr("/big", new MockStructStat("/big")));
+
+        // Test unmount, which waits for deletions
+        Assert.assertEquals(0, fs.unlink("/e"));
+        fs.destroy();
+        Assert.assertTrue(versions.isEmpty());
+        Assert.assertEquals(0, fs.deleters.outstanding);
+    }
+
+    /**
+     * Test that tickets are handed out in order.
+     */
+    @Test(timeout = 10000)
+    public void testTicket() throws Exception {
+        final Ticket ticket = new Ticket(2).init();
+        Assert.assertTrue(ticket.take(2, true));
+        Assert.assertFalse(ticket.take(1, false));
+        Assert.assertFalse(ticket.take(3, true));
+
+        // a large take waits...
+        final Thread waiter = new Thread(() -> Assert.assertTrue(ticket.take(2, true)));
+        waiter.start();
+        while (ticket.nextWaiter == ticket.headWaiter) {
+            Thread.sleep(1);
+        }
+
+        // ...and isn't passed by a small one
+        ticket.release(1);
+        Assert.assertFalse(ticket.take(1, false));
+        ticket.release(1);
+        waiter.join();
+        Assert.assertEquals(2, ticket.outstanding);
+
+        ticket.release(2);
+        Assert.assertTrue(ticket.take(1, false));
+    }
+
+    /**
+     * Reads the specified stream to the end.
+     */
+    private static byte[] readAll(@Nonnull final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Lists a bucket of file versions keyed by name and version, only the newest of each name
+     * if latest is set.
+     */
+    private static B2ListFilesIterable listVersions(@Nonnull final Map<String, String> versions,
+                                                    final String prefix, final String start,
+                                                    final boolean latest) {
+        return () -> new ArrayList<>(versions.entrySet()).stream()
+                .filter(e -> !latest || e.getKey().endsWith("\0" + 0))
+                .map(e -> new B2FileVersion(e.getValue(),
+                                            e.getKey().substring(0, e.getKey().indexOf('\0')),
+                                            1, "text/plain", "", Collections.emptyMap(),
+                                            "upload", 0L))
+                .filter(v -> prefix == null || v.getFileName().startsWith(prefix))
+                .filter(v -> start == null || v.getFileName().compareTo(start) >= 0)
+                .iterator();
+    }
+
+    /**
+     * Waits for the background deletions of the specified file system.
+     */
+    private static void waitForDeletes(@Nonnull final B2FuseFilesystem fs) {
+        for (final CompletableFuture<Void> done : new ArrayList<>(fs.deletes.values())) {
+            done.join();
+        }
+    }
+
+    /**
+     * Reads a file sequentially using the specified read size.
+     */
+    private byte[] readFully(@Nonnull final B2FuseFilesystem fs, @Nonnull final String path,
+                             @Nonnull final StructFuseFileInfo info, final int size,
+                             final int readSize) {
+        final byte[] actual = new byte[size];
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(readSize);
+        int offset = 0;
+        while (offset < size) {
+            buffer.clear();
+            final int result = fs.read(path, buffer, buffer.capacity(), offset, info);
+            Assert.assertTrue("read at " + offset + " returned " + result, result > 0);
+            buffer.flip();
+            buffer.get(actual, offset, result);
+            offset += result;
+        }
+        return actual;
+    }
+
+    /**
+     * Creates a B2 stream client serving the specified content, recording requested ranges and
+     * the threads that requested them.
+     */
+    private B2StreamClient createContentStreamClient(@Nonnull final String name,
+                                                     @Nonnull final byte[] content,
+                                                     @Nonnull final List<B2ByteRange> ranges,
+                                                     @Nonnull final List<String> threads)
+            throws B2Exception {
+        final B2StorageClient b2 = createB2StorageClient();
+        Mockito.when(b2.fileNames(Mockito.any(B2ListFileNamesRequest.class))).then(answer -> {
+            final B2ListFileNamesRequest request = answer.getArgument(0);
+            if (request.getPrefix().equals("") || request.getPrefix().equals(name)) {
+                return (B2ListFilesIterable) () -> {
+                    final B2FileVersion file = new B2FileVersion(
+                            "100", name, content.length, "application/octet-stream", "",
+                            Collections.emptyMap(), "", 0L);
+                    return Collections.singletonList(file).iterator();
+                };
+            } else {
+                return null;
+            }
+        });
+
+        final B2StreamClient stream = createB2StreamClient(b2);
+        Mockito.doAnswer(answer -> {
+            final B2DownloadByNameRequest request = answer.getArgument(0);
+            final B2ByteRange range = request.getRange();
+            int start = 0;
+            int end = content.length;
+            if (range != null) {
+                ranges.add(range);
+                start = range.start.intValue();
+                end = (int) Math.min(range.end + 1, content.length);
+            }
+            threads.add(Thread.currentThread().getName());
+
+            final HttpEntity entity = Mockito.mock(HttpEntity.class);
+            Mockito.when(entity.getContent())
+                    .thenReturn(new ByteArrayInputStream(content, start, end - start));
+            Mockito.when(entity.getContentLength()).thenReturn((long) (end - start));
+            final CloseableHttpResponse response = Mockito.mock(CloseableHttpResponse.class);
+            Mockito.when(response.getEntity()).thenReturn(entity);
+            return new B2Stream(response);
+        }).when(stream).streamByName(Mockito.any(B2DownloadByNameRequest.class));
+        return stream;
+    }
+
+    /**
+     * Creates a directory filler that collects names into the specified list.
+     */
+    private DirectoryFiller createDirectoryFiller(@Nonnull final List<String> list) {
+        final DirectoryFiller directoryFiller = Mockito.mock(DirectoryFiller.class);
+        Mockito.when(directoryFiller.add(Mockito.any())).then(answer -> {
+            final Iterable<String> added = answer.getArgument(0);
+            added.forEach(list::add);
+            return true;
+        });
+        return directoryFiller;
+    }
+
     /**
      * Creates a new B2 Storage Client.
      */
@@ -250,13 +1648,21 @@ public class B2FuseFilesystemTest {
      * Creates a new B2 Filey System.
      */
     private B2FuseFilesystem createFilesystem(final B2StreamClient b2Client) {
+        return createFilesystem(b2Client, createFlags());
+    }
+
+    /**
+     * Creates a new B2 File System with the specified flags.
+     */
+    private B2FuseFilesystem createFilesystem(final B2StreamClient b2Client,
+                                              final FlagStorage flags) {
         final B2FuseFilesystem fs = new B2FuseFilesystem() {
             @Override
             B2StreamClient newS3() {
                 return b2Client;
             }
         };
-        return fs.init(BUCKET, Mockito.mock(B2ClientConfig.class), createFlags());
+        return fs.init(BUCKET, Mockito.mock(B2ClientConfig.class), flags);
     }
 
     /**